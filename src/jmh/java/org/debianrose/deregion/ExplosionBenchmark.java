@@ -0,0 +1,116 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.debianrose.deregion.RegionLayouts.Layout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Фильтрация списка блоков взрыва, как в Main.filterExplosion, и пакетный запрос RegionQuery.areProtected
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExplosionBenchmark {
+
+    private static final int EXPLOSIONS = 64;
+    // Радиус взрыва TNT
+    private static final int RADIUS = 4;
+
+    @Param({"10", "1000", "100000"})
+    public int regions;
+
+    @Param({"PLOTS", "ADMIN_ZONES", "MULTI_LEVEL"})
+    public Layout layout;
+
+    private RegionIndex index;
+    private int levelId;
+    private final int[][] xs = new int[EXPLOSIONS][];
+    private final int[][] ys = new int[EXPLOSIONS][];
+    private final int[][] zs = new int[EXPLOSIONS][];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = RegionLayouts.store(RegionLayouts.generate(layout, regions, 42)).getIndex();
+        levelId = LevelIds.of(RegionLayouts.LEVELS[0]);
+
+        Random random = new Random(11);
+        int extent = RegionLayouts.extent(regions, layout);
+        int[] offsets = sphere();
+        for (int e = 0; e < EXPLOSIONS; e++) {
+            int cx = random.nextInt(extent);
+            int cy = 40 + random.nextInt(40);
+            int cz = random.nextInt(extent);
+            int blocks = offsets.length / 3;
+            xs[e] = new int[blocks];
+            ys[e] = new int[blocks];
+            zs[e] = new int[blocks];
+            for (int b = 0; b < blocks; b++) {
+                xs[e][b] = cx + offsets[b * 3];
+                ys[e][b] = cy + offsets[b * 3 + 1];
+                zs[e][b] = cz + offsets[b * 3 + 2];
+            }
+        }
+    }
+
+    private static int[] sphere() {
+        int[] offsets = new int[(2 * RADIUS + 1) * (2 * RADIUS + 1) * (2 * RADIUS + 1) * 3];
+        int size = 0;
+        for (int dx = -RADIUS; dx <= RADIUS; dx++) {
+            for (int dy = -RADIUS; dy <= RADIUS; dy++) {
+                for (int dz = -RADIUS; dz <= RADIUS; dz++) {
+                    if (dx * dx + dy * dy + dz * dz <= RADIUS * RADIUS) {
+                        offsets[size++] = dx;
+                        offsets[size++] = dy;
+                        offsets[size++] = dz;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(offsets, size);
+    }
+
+    private int nextExplosion() {
+        int e = next;
+        next = (e + 1) & (EXPLOSIONS - 1);
+        return e;
+    }
+
+    // Та же схема, что в Main.filterExplosion: общая коробка, один запрос к индексу, проверка блоков
+    @Benchmark
+    public int filterExplosion() {
+        int e = nextExplosion();
+        int[] x = xs[e], y = ys[e], z = zs[e];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int b = 0; b < x.length; b++) {
+            minX = Math.min(minX, x[b]);
+            minY = Math.min(minY, y[b]);
+            minZ = Math.min(minZ, z[b]);
+            maxX = Math.max(maxX, x[b]);
+            maxY = Math.max(maxY, y[b]);
+            maxZ = Math.max(maxZ, z[b]);
+        }
+        List<Region> candidates = index.getRegionsIntersecting(levelId, minX, minY, minZ, maxX, maxY, maxZ);
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        Region[] regionsHit = candidates.toArray(new Region[0]);
+        int removed = 0;
+        for (int b = 0; b < x.length; b++) {
+            if (ProtectionEngine.isDenied(regionsHit, RegionFlags.EXPLOSIONS, levelId, x[b], y[b], z[b])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Benchmark
+    public boolean[] areProtected() {
+        int e = nextExplosion();
+        return index.areProtected(RegionLayouts.LEVELS[0], xs[e], ys[e], zs[e]);
+    }
+}
@@ -0,0 +1,162 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.debianrose.deregion.RegionLayouts.Layout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Проверки одной точки: путь isAllowed с кэшем и без, isPositionInAnyRegion, течение жидкости
+// внутри сетки участков и далеко за ней, а также Region.contains/overlapsWith и проверка
+// пересечения выделения при создании региона, его конфликтов, свободного места и ближайшего региона
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtectionBenchmark {
+
+    private static final int PROBES = 4096;
+
+    @Param({"10", "1000", "100000"})
+    public int regions;
+
+    @Param({"PLOTS", "ADMIN_ZONES", "MULTI_LEVEL"})
+    public Layout layout;
+
+    private RegionIndex index;
+    private ProtectionEngine protection;
+    private int outsideOffset;
+    private PermissionCache cache;
+    private UUID playerUuid;
+    private int playerId;
+    private Region sample;
+
+    // Точки идут случайным блужданием, как игрок, ломающий блоки вокруг себя
+    private final int[] levelIds = new int[PROBES];
+    private final int[] xs = new int[PROBES];
+    private final int[] ys = new int[PROBES];
+    private final int[] zs = new int[PROBES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Region> generated = RegionLayouts.generate(layout, regions, 42);
+        RegionStore store = RegionLayouts.store(generated);
+        index = store.getIndex();
+        protection = new ProtectionEngine(store, null, null);
+        cache = new PermissionCache(64);
+        playerId = RegionLayouts.player(1);
+        playerUuid = PlayerIds.uuidOf(playerId);
+        sample = generated.get(0);
+
+        Random random = new Random(7);
+        int extent = RegionLayouts.extent(regions, layout);
+        outsideOffset = extent * 4;
+        int levelCount = layout == Layout.MULTI_LEVEL ? RegionLayouts.LEVELS.length : 1;
+        int x = random.nextInt(extent);
+        int z = random.nextInt(extent);
+        for (int i = 0; i < PROBES; i++) {
+            if (i % 256 == 0) {
+                x = random.nextInt(extent);
+                z = random.nextInt(extent);
+            }
+            x += random.nextInt(7) - 3;
+            z += random.nextInt(7) - 3;
+            levelIds[i] = LevelIds.of(RegionLayouts.LEVELS[(i / 256) % levelCount]);
+            xs[i] = x;
+            ys[i] = random.nextInt(256);
+            zs[i] = z;
+        }
+    }
+
+    private int nextProbe() {
+        int i = next;
+        next = (i + 1) & (PROBES - 1);
+        return i;
+    }
+
+    @Benchmark
+    public boolean isAllowedUncached() {
+        int i = nextProbe();
+        int levelId = levelIds[i];
+        Region[] deniers = index.getDeniers(playerId, levelId, xs[i] >> 4, zs[i] >> 4);
+        return !RegionIndex.containsAny(deniers, levelId, xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public boolean isAllowedCached() {
+        int i = nextProbe();
+        int levelId = levelIds[i];
+        int chunkX = xs[i] >> 4;
+        int chunkZ = zs[i] >> 4;
+        int generation = (int) index.getVersion();
+        Region[] deniers = cache.get(playerUuid, levelId, chunkX, chunkZ, generation);
+        if (deniers == null) {
+            deniers = index.getDeniers(playerId, levelId, chunkX, chunkZ);
+            cache.put(playerUuid, levelId, chunkX, chunkZ, generation, deniers);
+        }
+        return !RegionIndex.containsAny(deniers, levelId, xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public boolean isPositionInAnyRegion() {
+        int i = nextProbe();
+        return index.isProtected(levelIds[i], xs[i], ys[i], zs[i]);
+    }
+
+    // Вода течёт на соседний блок: граница участка, внутренность участка или дорога
+    @Benchmark
+    public boolean liquidFlow() {
+        int i = nextProbe();
+        return protection.crossesInto(RegionFlags.FLOW, levelIds[i], xs[i], ys[i], zs[i], xs[i] + 1, ys[i], zs[i]);
+    }
+
+    // Ферма лавы вдали от регионов: ответ должна давать битовая карта чанков
+    @Benchmark
+    public boolean liquidFlowOutsideRegions() {
+        int i = nextProbe();
+        int x = xs[i] + outsideOffset;
+        return protection.crossesInto(RegionFlags.FLOW, levelIds[i], x, ys[i], zs[i], x + 1, ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public boolean regionContains() {
+        int i = nextProbe();
+        return sample.contains(levelIds[i], xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public boolean regionOverlapsWith() {
+        int i = nextProbe();
+        return sample.overlapsWith(xs[i], 0, zs[i], xs[i] + 31, 255, zs[i] + 31);
+    }
+
+    // Выделение размером с участок, как при /region create
+    @Benchmark
+    public boolean selectionOverlapsAny() {
+        int i = nextProbe();
+        return index.overlapsAny(levelIds[i], xs[i], 0, zs[i], xs[i] + RegionLayouts.PLOT_SIZE - 1, 255, zs[i] + RegionLayouts.PLOT_SIZE - 1);
+    }
+
+    // Отказ в /region create: все пересечения с объёмами
+    @Benchmark
+    public List<RegionQuery.Overlap> selectionOverlaps() {
+        int i = nextProbe();
+        return index.getOverlaps(levelIds[i], xs[i], 0, zs[i], xs[i] + RegionLayouts.PLOT_SIZE - 1, 255, zs[i] + RegionLayouts.PLOT_SIZE - 1);
+    }
+
+    // /region here за пределами регионов: ближайший в радиусе 256 блоков
+    @Benchmark
+    public Region nearestRegionOutside() {
+        int i = nextProbe();
+        return index.getNearestRegion(levelIds[i], xs[i] + outsideOffset, ys[i], zs[i], 256);
+    }
+
+    @Benchmark
+    public int[] freeSpaceForSelection() {
+        int i = nextProbe();
+        return index.findFreeSpace(levelIds[i], xs[i], 0, zs[i], xs[i] + RegionLayouts.PLOT_SIZE - 1, 255, zs[i] + RegionLayouts.PLOT_SIZE - 1, 256);
+    }
+}
@@ -0,0 +1,87 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+// Синтетические наборы регионов для бенчмарков
+public final class RegionLayouts {
+
+    static final String[] LEVELS = {"world", "world_nether", "world_the_end", "plots"};
+
+    // Участок 24x24 и дорога 8 блоков, как у типичного генератора участков
+    static final int PLOT_SIZE = 24;
+    static final int PLOT_PITCH = 32;
+
+    public enum Layout {
+        // Плотная сетка участков в одном мире
+        PLOTS,
+        // Сетка участков, поверх которой лежат большие пересекающиеся админские зоны
+        ADMIN_ZONES,
+        // Сетка участков, разбитая на несколько миров
+        MULTI_LEVEL
+    }
+
+    private RegionLayouts() {
+    }
+
+    public static List<Region> generate(Layout layout, int count, long seed) {
+        Random random = new Random(seed);
+        int players = Math.max(1, count / 4);
+        int zones = layout == Layout.ADMIN_ZONES ? Math.max(1, count / 100) : 0;
+        int plots = count - zones;
+        int levelCount = layout == Layout.MULTI_LEVEL ? LEVELS.length : 1;
+        int side = gridSide(plots, levelCount);
+
+        List<Region> regions = new ArrayList<>(count);
+        for (int i = 0; i < plots; i++) {
+            int level = i % levelCount;
+            int cell = i / levelCount;
+            int x = (cell % side) * PLOT_PITCH;
+            int z = (cell / side) * PLOT_PITCH;
+            Region region = new Region("plot" + i, player(random.nextInt(players)), LEVELS[level],
+                    x, 0, z, x + PLOT_SIZE - 1, 255, z + PLOT_SIZE - 1);
+            if (random.nextInt(3) == 0) {
+                region.addMember(player(random.nextInt(players)));
+            }
+            regions.add(region);
+        }
+
+        // Зоны от 64 до 1024 блоков: часть из них попадает в список больших регионов индекса
+        int extent = side * PLOT_PITCH;
+        for (int i = 0; i < zones; i++) {
+            int size = 64 + random.nextInt(961);
+            int x = random.nextInt(Math.max(1, extent));
+            int z = random.nextInt(Math.max(1, extent));
+            regions.add(new Region("zone" + i, player(0), LEVELS[0], x, 0, z, x + size - 1, 255, z + size - 1));
+        }
+        return regions;
+    }
+
+    // Сторона квадрата сетки участков одного мира
+    static int gridSide(int plots, int levelCount) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt((double) plots / levelCount)));
+    }
+
+    static int extent(int count, Layout layout) {
+        int levelCount = layout == Layout.MULTI_LEVEL ? LEVELS.length : 1;
+        return gridSide(count, levelCount) * PLOT_PITCH;
+    }
+
+    static int player(int index) {
+        return PlayerIds.of(new UUID(0x4452474EL, index));
+    }
+
+    static RegionStore store(List<Region> regions) {
+        RegionStore store = new RegionStore();
+        store.beginBatch();
+        for (Region region : regions) {
+            store.put(region);
+        }
+        store.endBatch();
+        return store;
+    }
+}
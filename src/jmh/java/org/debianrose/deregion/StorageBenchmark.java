@@ -0,0 +1,58 @@
+package org.debianrose.deregion;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Запись и чтение полного снимка в обоих форматах, как при сжатии журнала и при старте сервера
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StorageBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int regions;
+
+    @Param({"yaml", "binary"})
+    public String format;
+
+    private SnapshotFormat snapshotFormat;
+    private StorageSnapshot snapshot;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        snapshotFormat = SnapshotFormat.byName(format);
+        RegionStore store = RegionLayouts.store(RegionLayouts.generate(RegionLayouts.Layout.MULTI_LEVEL, regions, 42));
+        snapshot = store.snapshot();
+        file = File.createTempFile("deregion-bench", "." + format);
+        Files.write(file.toPath(), snapshotFormat.write(snapshot));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException {
+        return snapshotFormat.write(snapshot);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        RegionStore store = new RegionStore();
+        store.beginBatch();
+        try {
+            snapshotFormat.read(file, store, levelName -> true, (name, e) -> {
+                throw new IllegalStateException("Could not load region " + name, e);
+            });
+        } finally {
+            store.endBatch();
+        }
+        return store.size();
+    }
+}
@@ -0,0 +1,299 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// regions.dat - версионированный бинарный снимок для быстрого старта на больших наборах регионов.
+// Версия 5: [int magic][int версия][int число игроков][игроки][int число миров], затем для каждого мира
+// [строка имя мира][int длина секции][секция]. Игрок: [long][long UUID][строка имя].
+// Секция: [int число строк][строки][int число регионов][регионы].
+// Строка: [int длина][UTF-8]. Регион: [int имя][int владелец][6 x int границы][int n][n x int участник]
+// [int биты настроек][int приветствие][int прощание][int приоритет][int заданные флаги][int разрешённые флаги],
+// где имя, владелец, участники и тексты - индексы в таблице строк секции (-1 - текста нет); игроки записаны строкой UUID.
+// Версия 4 - без приоритета и флагов, версия 3 - без настроек регионов, версия 2 - ещё и без таблицы игроков,
+// версия 1 - плоский список регионов.
+// Секции незагруженных миров не разбираются, а хранятся как есть до загрузки мира
+public class BinarySnapshotFormat implements SnapshotFormat {
+
+    static final int MAGIC = 0x4452474E;
+    static final int VERSION = 5;
+
+    private static final int OPTION_DENY_ENTRY = 1;
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public String getFileName() {
+        return "regions.dat";
+    }
+
+    @Override
+    public byte[] write(StorageSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + snapshot.getRegionCount() * 40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        Map<UUID, String> players = snapshot.getPlayers();
+        out.writeInt(players.size());
+        for (Map.Entry<UUID, String> player : players.entrySet()) {
+            out.writeLong(player.getKey().getMostSignificantBits());
+            out.writeLong(player.getKey().getLeastSignificantBits());
+            writeString(out, player.getValue());
+        }
+
+        Set<String> levelNames = snapshot.getLevelNames();
+        out.writeInt(levelNames.size());
+        for (String levelName : levelNames) {
+            List<Region> loaded = snapshot.getLevels().get(levelName);
+            byte[] dormant = snapshot.getDormantLevels().get(levelName);
+            byte[] section = loaded == null ? dormant : encodeSection(dormant == null ? loaded : snapshot.getRegions(levelName));
+            writeString(out, levelName);
+            out.writeInt(section.length);
+            out.write(section);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void read(File file, RegionStore store, Predicate<String> isLevelLoaded, BiConsumer<String, Exception> errors) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(buffer, file.getName(), store, isLevelLoaded);
+        } catch (RuntimeException e) {
+            // Испорченные счётчики и индексы строк дают разные исключения; для вызывающего это одна ошибка чтения
+            throw new IOException("Truncated or corrupt " + file.getName(), e);
+        }
+    }
+
+    private static void read(ByteBuffer buffer, String fileName, RegionStore store, Predicate<String> isLevelLoaded) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(fileName + " is not a region snapshot");
+        }
+        int version = buffer.getInt();
+        if (version == 1) {
+            readVersion1(buffer, store, isLevelLoaded);
+            return;
+        }
+        if (version < 2 || version > VERSION) {
+            throw new IOException("Unsupported " + fileName + " version: " + version);
+        }
+        if (version >= 3) {
+            int playerCount = buffer.getInt();
+            for (int i = 0; i < playerCount; i++) {
+                UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                PlayerIds.register(uuid, readString(buffer));
+                PlayerIds.retain(PlayerIds.of(uuid));
+            }
+        }
+
+        int levelCount = buffer.getInt();
+        for (int i = 0; i < levelCount; i++) {
+            String levelName = readString(buffer);
+            int sectionLength = readCount(buffer, 1);
+            int sectionEnd = buffer.position() + sectionLength;
+            if (isLevelLoaded.test(levelName)) {
+                decodeSection(buffer, version, levelName, store::put);
+            } else if (version < VERSION) {
+                // В памяти секции хранятся только в текущем формате
+                List<Region> levelRegions = new ArrayList<>();
+                decodeSection(buffer, version, levelName, levelRegions::add);
+                store.putDormantRegions(levelName, levelRegions);
+            } else {
+                byte[] section = new byte[sectionLength];
+                buffer.get(section);
+                store.putDormantLevel(levelName, section);
+            }
+            buffer.position(sectionEnd);
+        }
+    }
+
+    // Плоский формат первой версии: мир записан в каждом регионе
+    private static void readVersion1(ByteBuffer buffer, RegionStore store, Predicate<String> isLevelLoaded) {
+        String[] strings = readStrings(buffer);
+        Map<String, List<Region>> dormant = new HashMap<>();
+        int regionCount = buffer.getInt();
+        for (int i = 0; i < regionCount; i++) {
+            String name = strings[buffer.getInt()];
+            int owner = PlayerIds.parse(strings[buffer.getInt()]);
+            String levelName = strings[buffer.getInt()];
+            Region region = new Region(name, owner, levelName,
+                    buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            int memberCount = buffer.getInt();
+            for (int j = 0; j < memberCount; j++) {
+                region.addMember(PlayerIds.parse(strings[buffer.getInt()]));
+            }
+            if (isLevelLoaded.test(levelName)) {
+                store.put(region);
+            } else {
+                dormant.computeIfAbsent(levelName, k -> new ArrayList<>()).add(region);
+            }
+        }
+        for (Map.Entry<String, List<Region>> entry : dormant.entrySet()) {
+            store.putDormantRegions(entry.getKey(), entry.getValue());
+        }
+    }
+
+    static byte[] encodeSection(Collection<Region> regions) {
+        Map<String, Integer> stringIds = new LinkedHashMap<>();
+        for (Region region : regions) {
+            intern(stringIds, region.getName());
+            intern(stringIds, playerString(region.getOwner()));
+            for (int member : region.getMembers()) {
+                intern(stringIds, playerString(member));
+            }
+            if (region.getGreeting() != null) {
+                intern(stringIds, region.getGreeting());
+            }
+            if (region.getFarewell() != null) {
+                intern(stringIds, region.getFarewell());
+            }
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + regions.size() * 40);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(stringIds.size());
+            for (String value : stringIds.keySet()) {
+                writeString(out, value);
+            }
+
+            out.writeInt(regions.size());
+            for (Region region : regions) {
+                out.writeInt(stringIds.get(region.getName()));
+                out.writeInt(stringIds.get(playerString(region.getOwner())));
+                out.writeInt(region.getMinX());
+                out.writeInt(region.getMinY());
+                out.writeInt(region.getMinZ());
+                out.writeInt(region.getMaxX());
+                out.writeInt(region.getMaxY());
+                out.writeInt(region.getMaxZ());
+                int[] members = region.getMembers();
+                out.writeInt(members.length);
+                for (int member : members) {
+                    out.writeInt(stringIds.get(playerString(member)));
+                }
+                out.writeInt(region.isEntryDenied() ? OPTION_DENY_ENTRY : 0);
+                out.writeInt(region.getGreeting() != null ? stringIds.get(region.getGreeting()) : -1);
+                out.writeInt(region.getFarewell() != null ? stringIds.get(region.getFarewell()) : -1);
+                out.writeInt(region.getPriority());
+                out.writeInt(region.getFlagsSet());
+                out.writeInt(region.getFlagsAllowed());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void decodeSection(ByteBuffer buffer, String levelName, Consumer<Region> sink) {
+        decodeSection(buffer, VERSION, levelName, sink);
+    }
+
+    private static void decodeSection(ByteBuffer buffer, int version, String levelName, Consumer<Region> sink) {
+        String[] strings = readStrings(buffer);
+        int regionCount = buffer.getInt();
+        for (int i = 0; i < regionCount; i++) {
+            String name = strings[buffer.getInt()];
+            int owner = PlayerIds.parse(strings[buffer.getInt()]);
+            Region region = new Region(name, owner, levelName,
+                    buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            int memberCount = buffer.getInt();
+            for (int j = 0; j < memberCount; j++) {
+                region.addMember(PlayerIds.parse(strings[buffer.getInt()]));
+            }
+            if (version >= 4) {
+                int options = buffer.getInt();
+                int greeting = buffer.getInt();
+                int farewell = buffer.getInt();
+                region.setOption(Region.OPTION_DENY_ENTRY, String.valueOf((options & OPTION_DENY_ENTRY) != 0));
+                if (greeting >= 0) {
+                    region.setOption(Region.OPTION_GREETING, strings[greeting]);
+                }
+                if (farewell >= 0) {
+                    region.setOption(Region.OPTION_FAREWELL, strings[farewell]);
+                }
+            }
+            if (version >= 5) {
+                region.setOption(Region.OPTION_PRIORITY, String.valueOf(buffer.getInt()));
+                int flagsSet = buffer.getInt();
+                int flagsAllowed = buffer.getInt();
+                for (String flag : RegionFlags.NAMES) {
+                    int bit = RegionFlags.byName(flag);
+                    if ((flagsSet & bit) != 0) {
+                        region.setOption(flag, (flagsAllowed & bit) != 0 ? "allow" : "deny");
+                    }
+                }
+            }
+            sink.accept(region);
+        }
+    }
+
+    // Только имена и владельцы регионов секции, без разбора границ и участников
+    static List<String> readSectionNames(ByteBuffer buffer, List<String> owners) {
+        String[] strings = readStrings(buffer);
+        int regionCount = readCount(buffer, 8);
+        List<String> names = new ArrayList<>(regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            names.add(strings[buffer.getInt()]);
+            owners.add(strings[buffer.getInt()]);
+            buffer.position(buffer.position() + 6 * 4);
+            int memberCount = buffer.getInt();
+            buffer.position(buffer.position() + memberCount * 4 + 6 * 4);
+        }
+        return names;
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        String[] strings = new String[readCount(buffer, 4)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] encoded = new byte[readCount(buffer, 1)];
+        buffer.get(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    // Число элементов перед массивом: испорченное значение не должно обернуться огромным выделением памяти
+    private static int readCount(ByteBuffer buffer, int minBytesEach) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * minBytesEach > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String playerString(int playerId) {
+        return PlayerIds.uuidOf(playerId).toString();
+    }
+
+    private static void intern(Map<String, Integer> stringIds, String value) {
+        stringIds.putIfAbsent(value, stringIds.size());
+    }
+}
@@ -0,0 +1,613 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.Player;
+import cn.nukkit.block.Block;
+import cn.nukkit.level.Level;
+import cn.nukkit.level.format.FullChunk;
+import cn.nukkit.math.Vector3;
+import cn.nukkit.plugin.PluginLogger;
+import cn.nukkit.utils.TextFormat;
+import org.debianrose.deregion.Main.Region;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Снимки блоков региона для отката после гриферства. Мир читается и меняется только в основном потоке,
+// по столбцам чанков и не дольше бюджета за тик; сжатие и файлы - в своём потоке, а не в потоке
+// RegionWriter, чтобы долгий снимок не задерживал журнал. Файл snapshots/<имя>.blocks сжат deflate:
+// заголовок, затем для каждого столбца чанка id блоков (short) и их data (byte) в порядке x, z, y
+public class BlockSnapshots {
+
+    private static final int MAGIC = 0x44524253;
+    private static final int VERSION = 1;
+    private static final int MIN_Y = 0;
+    private static final int MAX_Y = 255;
+    // Снятые, но ещё не сжатые столбцы копятся не больше этого; дальше чтение мира ждёт
+    private static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+    // Восстановленные из файла столбцы, которые ждут основного потока
+    private static final int RESTORE_QUEUE = 8;
+    private static final byte[] END = new byte[0];
+
+    private final File folder;
+    private final PluginLogger logger;
+    private final long tickBudgetNanos;
+    private final long maxBlocks;
+    private final ExecutorService executor;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    public BlockSnapshots(File folder, PluginLogger logger, long tickBudgetNanos, long maxBlocks) {
+        this.folder = folder;
+        this.logger = logger;
+        this.tickBudgetNanos = tickBudgetNanos;
+        this.maxBlocks = maxBlocks;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DeRegion-Snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Возвращает текст ошибки или null, если снятие началось
+    public String capture(Region region, Level level, Player requester) {
+        String error = checkStart(region);
+        if (error != null) {
+            return error;
+        }
+        start(new CaptureJob(region, level, requester));
+        return null;
+    }
+
+    public String restore(Region region, Level level, Player requester) {
+        String error = checkStart(region);
+        if (error != null) {
+            return error;
+        }
+        if (!fileOf(region.getName()).isFile()) {
+            return "Region '" + region.getName() + "' has no snapshot";
+        }
+        start(new RestoreJob(region, level, requester));
+        return null;
+    }
+
+    public boolean isTooLarge(Region region) {
+        return volumeOf(region) > maxBlocks;
+    }
+
+    public boolean isBusy(String regionName) {
+        return jobs.containsKey(regionName);
+    }
+
+    // Регион удалён: останавливаем работу с ним и убираем файл
+    public void delete(String regionName) {
+        cancel(regionName);
+        File file = fileOf(regionName);
+        executor.execute(() -> {
+            if (file.exists() && !file.delete()) {
+                logger.warning("Could not delete " + file.getName());
+            }
+        });
+    }
+
+    // Вызывается каждый тик из основного потока
+    public void tick() {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        long deadline = System.nanoTime() + tickBudgetNanos;
+        Iterator<Job> iterator = jobs.values().iterator();
+        Job first = null;
+        while (iterator.hasNext() && System.nanoTime() < deadline) {
+            Job job = iterator.next();
+            if (first == null) {
+                first = job;
+            }
+            if (job.step(deadline)) {
+                iterator.remove();
+                job.finish();
+            }
+        }
+        // Следующий тик начинаем с другой работы, чтобы большая не занимала весь бюджет
+        if (first != null && jobs.remove(first.region.getName()) != null) {
+            jobs.put(first.region.getName(), first);
+        }
+    }
+
+    // Состояние для /region info: идущая работа или уже сохранённый снимок, иначе null
+    public String describe(String regionName) {
+        Job job = jobs.get(regionName);
+        if (job != null) {
+            return job.describe();
+        }
+        File file = fileOf(regionName);
+        if (!file.isFile()) {
+            return null;
+        }
+        return "taken " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(file.lastModified()))
+                + ", " + Math.max(1, file.length() / 1024) + " KB";
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    public void close() {
+        for (String regionName : new ArrayList<>(jobs.keySet())) {
+            Job job = jobs.get(regionName);
+            if (job instanceof RestoreJob) {
+                logger.warning("Restore of region '" + regionName + "' interrupted by shutdown at " + job.percent() + "%");
+            }
+            cancel(regionName);
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for snapshot writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String checkStart(Region region) {
+        if (jobs.containsKey(region.getName())) {
+            return "Region '" + region.getName() + "' is already being snapshotted or restored";
+        }
+        if (isTooLarge(region)) {
+            return "Region '" + region.getName() + "' is too large to snapshot (" + volumeOf(region)
+                    + " blocks, limit " + maxBlocks + ")";
+        }
+        return null;
+    }
+
+    private void start(Job job) {
+        jobs.put(job.region.getName(), job);
+        job.begin();
+    }
+
+    private void cancel(String regionName) {
+        Job job = jobs.remove(regionName);
+        if (job != null) {
+            job.cancelled = true;
+            job.finish();
+        }
+    }
+
+    private File fileOf(String regionName) {
+        return new File(folder, encodeName(regionName) + ".blocks");
+    }
+
+    // Имя региона задаёт игрок, поэтому в имени файла оставляем только безопасные символы
+    static String encodeName(String name) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                builder.append(c);
+            } else {
+                // Заглавные тоже кодируем: на нечувствительных к регистру дисках Home и home - один файл
+                builder.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static long volumeOf(Region region) {
+        long height = Math.max(0, Math.min(MAX_Y, region.getMaxY()) - Math.max(MIN_Y, region.getMinY()) + 1);
+        return (long) (region.getMaxX() - region.getMinX() + 1) * (region.getMaxZ() - region.getMinZ() + 1) * height;
+    }
+
+    // Обход региона по столбцам чанков: текущий столбец и его пересечение с регионом
+    private static final class Columns {
+        final Region region;
+        final int minY;
+        final int maxY;
+        final int maxChunkX;
+        final int minChunkZ;
+        final int maxChunkZ;
+        int chunkX;
+        int chunkZ;
+        int x0;
+        int x1;
+        int z0;
+        int z1;
+
+        Columns(Region region) {
+            this.region = region;
+            this.minY = Math.max(MIN_Y, region.getMinY());
+            this.maxY = Math.min(MAX_Y, region.getMaxY());
+            this.maxChunkX = region.getMaxX() >> 4;
+            this.minChunkZ = region.getMinZ() >> 4;
+            this.maxChunkZ = region.getMaxZ() >> 4;
+            this.chunkX = region.getMinX() >> 4;
+            this.chunkZ = minChunkZ;
+            bound();
+        }
+
+        boolean hasNext() {
+            return chunkX <= maxChunkX;
+        }
+
+        void next() {
+            if (++chunkZ > maxChunkZ) {
+                chunkZ = minChunkZ;
+                chunkX++;
+            }
+            bound();
+        }
+
+        int blocks() {
+            return (x1 - x0 + 1) * (z1 - z0 + 1) * (maxY - minY + 1);
+        }
+
+        private void bound() {
+            x0 = Math.max(region.getMinX(), chunkX << 4);
+            x1 = Math.min(region.getMaxX(), (chunkX << 4) + 15);
+            z0 = Math.max(region.getMinZ(), chunkZ << 4);
+            z1 = Math.min(region.getMaxZ(), (chunkZ << 4) + 15);
+        }
+    }
+
+    private abstract class Job {
+        final Region region;
+        final Level level;
+        final Player requester;
+        final Columns columns;
+        final long total;
+        long done;
+        volatile boolean cancelled;
+        volatile String error;
+
+        Job(Region region, Level level, Player requester) {
+            this.region = region;
+            this.level = level;
+            this.requester = requester;
+            this.columns = new Columns(region);
+            this.total = volumeOf(region);
+        }
+
+        abstract void begin();
+
+        // true, когда работа закончена (успешно или нет)
+        abstract boolean step(long deadline);
+
+        // Вызывается один раз: по окончании или при отмене
+        abstract void finish();
+
+        abstract String describe();
+
+        int percent() {
+            return total == 0 ? 100 : (int) (done * 100 / total);
+        }
+
+        void report(String message) {
+            if (requester != null && requester.isOnline()) {
+                requester.sendMessage(message);
+            }
+        }
+    }
+
+    private final class CaptureJob extends Job {
+        private final File target;
+        private final File temp;
+        // Поля ниже трогает только поток снимков
+        private FileOutputStream file;
+        private DeflaterOutputStream deflating;
+        private DataOutputStream out;
+        private Deflater deflater;
+        private volatile boolean saved;
+        private boolean read;
+
+        CaptureJob(Region region, Level level, Player requester) {
+            super(region, level, requester);
+            this.target = fileOf(region.getName());
+            this.temp = new File(folder, target.getName() + ".tmp");
+        }
+
+        @Override
+        void begin() {
+            executor.execute(() -> {
+                try {
+                    folder.mkdirs();
+                    file = new FileOutputStream(temp);
+                    // Скорость важнее степени сжатия: блоки одного типа и так сжимаются в разы
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    deflating = new DeflaterOutputStream(new BufferedOutputStream(file), deflater, 65536);
+                    out = new DataOutputStream(deflating);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(region.getLevelName());
+                    out.writeInt(region.getMinX());
+                    out.writeInt(columns.minY);
+                    out.writeInt(region.getMinZ());
+                    out.writeInt(region.getMaxX());
+                    out.writeInt(columns.maxY);
+                    out.writeInt(region.getMaxZ());
+                } catch (IOException e) {
+                    error = e.toString();
+                }
+            });
+        }
+
+        @Override
+        boolean step(long deadline) {
+            if (cancelled || error != null) {
+                return true;
+            }
+            if (read) {
+                return saved;
+            }
+            while (columns.hasNext()) {
+                if (queuedBytes.get() > MAX_QUEUED_BYTES || System.nanoTime() >= deadline) {
+                    return false;
+                }
+                FullChunk chunk = level.getChunk(columns.chunkX, columns.chunkZ, true);
+                if (chunk == null) {
+                    error = "chunk " + columns.chunkX + ", " + columns.chunkZ + " could not be loaded";
+                    return true;
+                }
+                byte[] column = readColumn(chunk);
+                queuedBytes.addAndGet(column.length);
+                executor.execute(() -> {
+                    queuedBytes.addAndGet(-column.length);
+                    if (error == null && !cancelled) {
+                        try {
+                            out.write(column);
+                        } catch (IOException e) {
+                            error = e.toString();
+                        }
+                    }
+                });
+                done += columns.blocks();
+                columns.next();
+            }
+            read = true;
+            executor.execute(this::save);
+            return false;
+        }
+
+        // id блоков столбца, затем их data
+        private byte[] readColumn(FullChunk chunk) {
+            int count = columns.blocks();
+            byte[] column = new byte[count * 3];
+            int i = 0;
+            for (int x = columns.x0; x <= columns.x1; x++) {
+                for (int z = columns.z0; z <= columns.z1; z++) {
+                    for (int y = columns.minY; y <= columns.maxY; y++) {
+                        int id = chunk.getBlockId(x & 15, y, z & 15);
+                        column[i * 2] = (byte) (id >> 8);
+                        column[i * 2 + 1] = (byte) id;
+                        column[count * 2 + i] = (byte) chunk.getBlockData(x & 15, y, z & 15);
+                        i++;
+                    }
+                }
+            }
+            return column;
+        }
+
+        // В потоке снимков: дописываем, сбрасываем на диск и подменяем прежний снимок целиком
+        private void save() {
+            try {
+                if (error == null && !cancelled) {
+                    deflating.finish();
+                    out.flush();
+                    file.getFD().sync();
+                    out.close();
+                    out = null;
+                    file = null;
+                    try {
+                        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            } catch (IOException e) {
+                error = e.toString();
+            } finally {
+                discard();
+                saved = true;
+            }
+        }
+
+        // Закрывает поток и удаляет временный файл; повторный вызов ничего не делает
+        private void discard() {
+            try {
+                if (out != null) {
+                    out.close();
+                } else if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // файл всё равно удаляем
+            }
+            out = null;
+            file = null;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+
+        @Override
+        void finish() {
+            if (!saved) {
+                // Остановлены раньше, чем файл дописан: закрываем и удаляем недописанный
+                executor.execute(this::discard);
+            }
+            if (cancelled) {
+                return;
+            }
+            if (error != null) {
+                logger.warning("Snapshot of region '" + region.getName() + "' failed: " + error);
+                report(TextFormat.RED + "Snapshot of region '" + region.getName() + "' failed: " + error);
+            } else {
+                report(TextFormat.GREEN + "Snapshot of region '" + region.getName() + "' saved (" + total + " blocks).");
+            }
+        }
+
+        @Override
+        String describe() {
+            return read ? "saving" : "capturing " + percent() + "%";
+        }
+    }
+
+    private final class RestoreJob extends Job {
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(RESTORE_QUEUE);
+        private final Vector3 position = new Vector3();
+        private byte[] column;
+        private FullChunk chunk;
+        private int offset;
+        private long changed;
+
+        RestoreJob(Region region, Level level, Player requester) {
+            super(region, level, requester);
+        }
+
+        @Override
+        void begin() {
+            File file = fileOf(region.getName());
+            executor.execute(() -> {
+                try (FileInputStream input = new FileInputStream(file)) {
+                    Inflater inflater = new Inflater();
+                    try {
+                        DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(input), inflater, 65536));
+                        readHeader(in);
+                        // Тот же обход столбцов, что и у основного потока, но на своей копии курсора
+                        Columns cursor = new Columns(region);
+                        while (cursor.hasNext() && !cancelled) {
+                            byte[] data = new byte[cursor.blocks() * 3];
+                            in.readFully(data);
+                            offer(data);
+                            cursor.next();
+                        }
+                        offer(END);
+                    } finally {
+                        inflater.end();
+                    }
+                } catch (IOException e) {
+                    error = e.toString();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        private void readHeader(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a region snapshot");
+            }
+            String levelName = in.readUTF();
+            int[] bounds = new int[6];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = in.readInt();
+            }
+            if (!levelName.equals(region.getLevelName()) || bounds[0] != region.getMinX() || bounds[1] != columns.minY
+                    || bounds[2] != region.getMinZ() || bounds[3] != region.getMaxX() || bounds[4] != columns.maxY
+                    || bounds[5] != region.getMaxZ()) {
+                throw new IOException("snapshot was taken for other bounds");
+            }
+        }
+
+        private void offer(byte[] data) throws InterruptedException {
+            while (!cancelled && !queue.offer(data, 100, TimeUnit.MILLISECONDS)) {
+                // ждём, пока основной поток разберёт очередь
+            }
+        }
+
+        @Override
+        boolean step(long deadline) {
+            while (!cancelled) {
+                if (column == null) {
+                    if (error != null) {
+                        return true;
+                    }
+                    column = queue.poll();
+                    if (column == null) {
+                        return false;
+                    }
+                    if (column == END) {
+                        return true;
+                    }
+                    chunk = level.getChunk(columns.chunkX, columns.chunkZ, true);
+                    if (chunk == null) {
+                        error = "chunk " + columns.chunkX + ", " + columns.chunkZ + " could not be loaded";
+                        return true;
+                    }
+                    offset = 0;
+                }
+                if (applyColumn(deadline)) {
+                    column = null;
+                    chunk = null;
+                    columns.next();
+                }
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Ставит блоки столбца, пока не кончится бюджет; true, если столбец закончен
+        private boolean applyColumn(long deadline) {
+            int count = columns.blocks();
+            int height = columns.maxY - columns.minY + 1;
+            int depth = columns.z1 - columns.z0 + 1;
+            while (offset < count) {
+                int i = offset++;
+                int id = ((column[i * 2] & 0xFF) << 8) | (column[i * 2 + 1] & 0xFF);
+                int data = column[count * 2 + i] & 0xFF;
+                int y = columns.minY + i % height;
+                int z = columns.z0 + (i / height) % depth;
+                int x = columns.x0 + i / (height * depth);
+                done++;
+                if (chunk.getBlockId(x & 15, y, z & 15) == id && chunk.getBlockData(x & 15, y, z & 15) == data) {
+                    continue;
+                }
+                position.x = x;
+                position.y = y;
+                position.z = z;
+                // Без обновления соседей: иначе вода и песок начнут течь посреди отката
+                level.setBlock(position, Block.get(id, data), false, false);
+                changed++;
+                if ((changed & 63) == 0 && System.nanoTime() >= deadline) {
+                    return offset == count;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void finish() {
+            column = null;
+            queue.clear();
+            if (cancelled) {
+                return;
+            }
+            if (error != null) {
+                logger.warning("Restore of region '" + region.getName() + "' failed after " + changed + " blocks: " + error);
+                report(TextFormat.RED + "Restore of region '" + region.getName() + "' failed after " + changed + " blocks: " + error);
+            } else {
+                report(TextFormat.GREEN + "Region '" + region.getName() + "' restored, " + changed + " blocks changed.");
+            }
+        }
+
+        @Override
+        String describe() {
+            return "restoring " + percent() + "%, " + changed + " blocks changed";
+        }
+    }
+}
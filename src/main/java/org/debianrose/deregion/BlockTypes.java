@@ -0,0 +1,68 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.block.Block;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+// Набор id блоков как таблица флагов: проверка - одно чтение из массива, без упаковки и хэшей.
+// Собирается из конфига, где блок задан именем константы Nukkit (chest, wooden_door_block) или числом
+public final class BlockTypes {
+
+    // Больших id в Nukkit нет; ограничение не даёт опечатке в конфиге раздуть таблицу
+    private static final int MAX_ID = 0xFFFF;
+
+    private final boolean[] ids;
+
+    private BlockTypes(boolean[] ids) {
+        this.ids = ids;
+    }
+
+    public static BlockTypes parse(List<?> entries, Consumer<String> warnings) {
+        int[] parsed = new int[entries.size()];
+        int count = 0;
+        int maxId = -1;
+        for (Object entry : entries) {
+            int id = resolve(String.valueOf(entry).trim());
+            if (id < 0 || id > MAX_ID) {
+                warnings.accept("Unknown block type '" + entry + "'");
+                continue;
+            }
+            parsed[count++] = id;
+            maxId = Math.max(maxId, id);
+        }
+        boolean[] ids = new boolean[maxId + 1];
+        for (int i = 0; i < count; i++) {
+            ids[parsed[i]] = true;
+        }
+        return new BlockTypes(ids);
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < ids.length && ids[id];
+    }
+
+    public int size() {
+        int size = 0;
+        for (boolean id : ids) {
+            if (id) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static int resolve(String name) {
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            // не число - ищем константу
+        }
+        try {
+            return Block.class.getField(name.toUpperCase(Locale.ROOT)).getInt(null);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.Player;
+import cn.nukkit.utils.TextFormat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// Сообщения об отказах: по каждой причине игрок получает не больше одного за interval тиков.
+// Отказы внутри интервала только считаются и приходят одним сообщением со счётчиком, когда интервал
+// истечёт. Состояние игрока - несколько массивов по числу причин, убирается при выходе
+public class DenyNotifier {
+
+    public enum Reason {
+        BREAK, PLACE, INTERACT, PVP, ENTER
+    }
+
+    public enum Display {
+        CHAT, TIP, POPUP, ACTIONBAR;
+
+        public static Display byName(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown notification display '" + name + "'");
+            }
+        }
+    }
+
+    private static final int REASONS = Reason.values().length;
+
+    private final int interval;
+    private final Display display;
+    private final Map<UUID, PlayerEntry> players = new HashMap<>();
+    private long sent;
+    private long coalesced;
+
+    public DenyNotifier(int interval, Display display) {
+        this.interval = Math.max(0, interval);
+        this.display = display;
+    }
+
+    public void deny(Player player, Reason reason, String message, int tick) {
+        if (interval == 0) {
+            send(player, message);
+            return;
+        }
+        PlayerEntry entry = players.get(player.getUniqueId());
+        if (entry == null) {
+            entry = new PlayerEntry(player);
+            players.put(player.getUniqueId(), entry);
+        }
+        int slot = reason.ordinal();
+        if (tick - entry.lastSent[slot] < interval) {
+            entry.pending[slot]++;
+            entry.messages[slot] = message;
+            coalesced++;
+            return;
+        }
+        // Интервал истёк, а накопленное ещё не разослано: отправляем всё одним сообщением
+        int count = entry.pending[slot] + 1;
+        entry.pending[slot] = 0;
+        entry.messages[slot] = null;
+        entry.lastSent[slot] = tick;
+        send(player, withCount(message, count));
+    }
+
+    // Вызывается раз в interval тиков: рассылает отказы, накопленные к концу серии
+    public void flush(int tick) {
+        for (PlayerEntry entry : players.values()) {
+            for (int slot = 0; slot < REASONS; slot++) {
+                if (entry.pending[slot] > 0 && tick - entry.lastSent[slot] >= interval) {
+                    send(entry.player, withCount(entry.messages[slot], entry.pending[slot]));
+                    entry.pending[slot] = 0;
+                    entry.messages[slot] = null;
+                    entry.lastSent[slot] = tick;
+                }
+            }
+        }
+    }
+
+    public void remove(UUID playerId) {
+        players.remove(playerId);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public Display getDisplay() {
+        return display;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    private void send(Player player, String message) {
+        sent++;
+        switch (display) {
+            case TIP:
+                player.sendTip(message);
+                break;
+            case POPUP:
+                player.sendPopup(message);
+                break;
+            case ACTIONBAR:
+                player.sendActionBar(message);
+                break;
+            default:
+                player.sendMessage(message);
+        }
+    }
+
+    private static String withCount(String message, int count) {
+        return count > 1 ? message + TextFormat.GRAY + " (x" + count + ")" : message;
+    }
+
+    private static final class PlayerEntry {
+        private final Player player;
+        private final int[] lastSent = new int[REASONS];
+        private final int[] pending = new int[REASONS];
+        // Текст последнего отказа в серии: у входа в регион он зависит от региона
+        private final String[] messages = new String[REASONS];
+
+        private PlayerEntry(Player player) {
+            this.player = player;
+            // Первый отказ каждой причины показываем сразу
+            Arrays.fill(lastSent, Integer.MIN_VALUE / 2);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.debianrose.deregion;
+
+import java.util.Arrays;
+
+// Множество int без упаковки: отсортированный массив с двоичным поиском.
+// Участников у региона обычно единицы, так что вставка со сдвигом дешевле хэш-таблицы
+public final class IntSet {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] values = EMPTY;
+    private int size;
+
+    public IntSet() {
+    }
+
+    public IntSet(IntSet other) {
+        values = Arrays.copyOf(other.values, other.size);
+        size = other.size;
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    public boolean add(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, size * 2));
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,114 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+// Проигрывание журнала поверх загруженного снимка. Журнал с пропущенными или непрочитанными
+// записями сначала копируется рядом и только потом может быть сжат
+public class JournalReplay {
+
+    private final RegionJournal journal;
+    private final RegionStore store;
+    private int applied;
+    private int skipped;
+    private IOException error;
+    private File backup;
+
+    public JournalReplay(RegionJournal journal, RegionStore store) {
+        this.journal = journal;
+        this.store = store;
+    }
+
+    // Возвращает false, если журнал прочитан не до конца; причина - в getError
+    public boolean run(BiConsumer<Integer, Exception> skippedEntries) {
+        store.beginBatch();
+        try {
+            applied = journal.replay(new RegionJournal.Handler() {
+                @Override
+                public void create(Region region) {
+                    store.put(region);
+                }
+
+                @Override
+                public void delete(String regionName) {
+                    store.remove(regionName);
+                }
+
+                @Override
+                public void addMember(String regionName, int memberId) {
+                    Region region = store.get(regionName);
+                    if (region != null) {
+                        store.addMember(region, memberId);
+                    }
+                }
+
+                @Override
+                public void removeMember(String regionName, int memberId) {
+                    Region region = store.get(regionName);
+                    if (region != null) {
+                        store.removeMember(region, memberId);
+                    }
+                }
+
+                @Override
+                public void player(UUID uuid, String name) {
+                    PlayerIds.register(uuid, name);
+                    PlayerIds.retain(PlayerIds.of(uuid));
+                }
+
+                @Override
+                public void setOption(String regionName, String key, String value) {
+                    Region region = store.get(regionName);
+                    if (region != null && Region.OPTIONS.contains(key)) {
+                        store.setOption(region, key, value);
+                    }
+                }
+
+                @Override
+                public void skipped(int index, Exception e) {
+                    skipped++;
+                    skippedEntries.accept(index, e);
+                }
+            });
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            store.endBatch();
+        }
+        return error == null;
+    }
+
+    public int getApplied() {
+        return applied;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    public boolean needsBackup() {
+        return skipped > 0 || error != null;
+    }
+
+    // Пропущенные и непрочитанные записи могут пригодиться позже: копия журнала переживёт любое сжатие
+    public File saveBackup(File folder) throws IOException {
+        File copy = new File(folder, journal.getFile().getName() + ".bad-" + System.currentTimeMillis());
+        Files.copy(journal.getFile().toPath(), copy.toPath());
+        backup = copy;
+        return copy;
+    }
+
+    // Журнал, который не дочитан до конца или не сохранён, не сжимаем: сжатие очистило бы его записи
+    public boolean canCompact() {
+        return error == null && (skipped == 0 || backup != null);
+    }
+}
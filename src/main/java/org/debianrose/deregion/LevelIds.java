@@ -0,0 +1,75 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.level.Level;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Интернирование имён миров в компактные int-идентификаторы
+public final class LevelIds {
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final List<String> names = new CopyOnWriteArrayList<>();
+
+    // Кэш по runtime-id мира Nukkit, чтобы на горячем пути не трогать имя
+    private static volatile int[] byRuntimeId = new int[0];
+
+    private LevelIds() {
+    }
+
+    public static int of(String levelName) {
+        Integer id = ids.get(levelName);
+        if (id != null) {
+            return id;
+        }
+        synchronized (LevelIds.class) {
+            return ids.computeIfAbsent(levelName, k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    // Без интернирования: для запросов по произвольным именам из других плагинов
+    public static int find(String levelName) {
+        Integer id = ids.get(levelName);
+        return id != null ? id : -1;
+    }
+
+    public static int of(Level level) {
+        int runtimeId = level.getId();
+        int[] cache = byRuntimeId;
+        if (runtimeId >= 0 && runtimeId < cache.length && cache[runtimeId] >= 0) {
+            return cache[runtimeId];
+        }
+        return cache(runtimeId, of(level.getName()));
+    }
+
+    public static String nameOf(int levelId) {
+        return names.get(levelId);
+    }
+
+    public static int count() {
+        return names.size();
+    }
+
+    private static synchronized int cache(int runtimeId, int levelId) {
+        if (runtimeId < 0) {
+            return levelId;
+        }
+        int[] cache = byRuntimeId;
+        if (runtimeId >= cache.length) {
+            int oldLength = cache.length;
+            cache = Arrays.copyOf(cache, Math.max(runtimeId + 1, oldLength * 2));
+            Arrays.fill(cache, oldLength, cache.length, -1);
+        } else {
+            cache = cache.clone();
+        }
+        cache[runtimeId] = levelId;
+        byRuntimeId = cache;
+        return levelId;
+    }
+}
@@ -1,32 +1,87 @@
 package org.debianrose.deregion;
 
+import cn.nukkit.IPlayer;
 import cn.nukkit.Player;
 import cn.nukkit.block.Block;
 import cn.nukkit.command.Command;
 import cn.nukkit.command.CommandSender;
 import cn.nukkit.event.EventHandler;
+import cn.nukkit.event.EventPriority;
 import cn.nukkit.event.Listener;
 import cn.nukkit.event.block.BlockBreakEvent;
+import cn.nukkit.event.block.BlockBurnEvent;
+import cn.nukkit.event.block.BlockFromToEvent;
+import cn.nukkit.event.block.BlockPistonEvent;
 import cn.nukkit.event.block.BlockPlaceEvent;
 import cn.nukkit.event.block.BlockExplodeEvent;
+import cn.nukkit.event.block.BlockSpreadEvent;
+import cn.nukkit.event.entity.EntityDamageByEntityEvent;
 import cn.nukkit.event.entity.EntityExplodeEvent;
+import cn.nukkit.event.level.LevelLoadEvent;
+import cn.nukkit.event.level.LevelUnloadEvent;
 import cn.nukkit.event.player.PlayerInteractEvent;
+import cn.nukkit.event.player.PlayerJoinEvent;
+import cn.nukkit.event.player.PlayerMoveEvent;
 import cn.nukkit.event.player.PlayerQuitEvent;
+import cn.nukkit.event.player.PlayerTeleportEvent;
 import cn.nukkit.item.Item;
+import cn.nukkit.level.Level;
+import cn.nukkit.level.Location;
 import cn.nukkit.level.Position;
+import cn.nukkit.math.BlockFace;
 import cn.nukkit.plugin.PluginBase;
-import cn.nukkit.utils.Config;
+import cn.nukkit.plugin.service.ServicePriority;
+import cn.nukkit.scheduler.TaskHandler;
 import cn.nukkit.utils.TextFormat;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 public class Main extends PluginBase implements Listener {
 
-    private Config regionsConfig;
-    private Map<String, Region> regions;
-    private Map<String, RegionSelection> selections;
+    // Как новый регион может пересекать существующие: никак, только вложением целиком или как угодно
+    private static final String OVERLAP_DENY = "deny";
+    private static final String OVERLAP_NESTED = "nested";
+    private static final String OVERLAP_ALLOW = "allow";
+    // Сколько мешающих регионов перечислять при отказе в создании
+    private static final int OVERLAPS_SHOWN = 5;
+    private static final int FREE_SPACE_DISTANCE = 256;
+    private static final int NEAREST_REGION_DISTANCE = 256;
+    // Если в config.yml нет interact.protected-blocks (конфиг старой версии)
+    private static final List<String> DEFAULT_PROTECTED_BLOCKS = Arrays.asList(
+            "chest", "trapped_chest", "furnace", "burning_furnace", "barrel", "hopper_block", "dropper", "dispenser",
+            "shulker_box", "undyed_shulker_box", "brewing_stand_block", "wooden_door_block", "spruce_door_block",
+            "birch_door_block", "jungle_door_block", "acacia_door_block", "dark_oak_door_block", "trapdoor",
+            "fence_gate_oak", "lever", "stone_button", "wooden_button", "anvil", "beacon", "jukebox", "noteblock");
+    private static final int LIST_PAGE_SIZE = 15;
+
+    private SnapshotFormat snapshotFormat;
+    private RegionJournal regionJournal;
+    private RegionWriter regionWriter;
+    private RegionStore regionStore;
+    private PermissionCache permissionCache;
+    private RegionMetrics metrics;
+    private ProtectionEngine protection;
+    private TraceRecorder trace;
+    private RegionTracker regionTracker;
+    private Map<UUID, RegionSelection> selections;
     private Item regionWand;
+    private BlockTypes protectedBlocks;
+    private DenyNotifier notifier;
+    private BlockSnapshots blockSnapshots;
+    private boolean snapshotOnCreate;
+    private String overlapMode;
+    private int maxRegionsPerPlayer;
+    private int saveDelayTicks;
+    private long journalMaxBytes;
+    private long journalBytes;
+    private int lastChangeTick;
+    private TaskHandler saveTask;
 
     @Override
     public void onEnable() {
@@ -34,22 +89,115 @@ public class Main extends PluginBase implements Listener {
             this.getDataFolder().mkdirs();
         }
 
-        this.regionsConfig = new Config(new File(this.getDataFolder(), "regions.yml"), Config.YAML);
-        this.regions = new HashMap<>();
+        this.saveDefaultConfig();
+        this.saveDelayTicks = Math.max(1, this.getConfig().getInt("storage.save-delay-ticks", 40));
+        this.journalMaxBytes = Math.max(1, this.getConfig().getInt("storage.journal-max-kb", 1024)) * 1024L;
+        long fsyncIntervalMillis = Math.max(1, this.getConfig().getInt("storage.journal-fsync-ms", 1000));
+        this.maxRegionsPerPlayer = this.getConfig().getInt("regions.max-per-player", 0);
+        this.overlapMode = this.getConfig().getString("regions.overlap", OVERLAP_DENY).toLowerCase(Locale.ROOT);
+        if (!overlapMode.equals(OVERLAP_DENY) && !overlapMode.equals(OVERLAP_NESTED) && !overlapMode.equals(OVERLAP_ALLOW)) {
+            this.getLogger().warning("Unknown regions.overlap '" + overlapMode + "', falling back to " + OVERLAP_DENY);
+            this.overlapMode = OVERLAP_DENY;
+        }
+        List<?> protectedBlockNames = this.getConfig().getList("interact.protected-blocks", DEFAULT_PROTECTED_BLOCKS);
+        this.protectedBlocks = BlockTypes.parse(protectedBlockNames, message -> this.getLogger().warning(message));
+        DenyNotifier.Display display;
+        try {
+            display = DenyNotifier.Display.byName(this.getConfig().getString("notifications.display", "chat"));
+        } catch (IllegalArgumentException e) {
+            this.getLogger().warning(e.getMessage() + ", falling back to chat");
+            display = DenyNotifier.Display.CHAT;
+        }
+        this.notifier = new DenyNotifier(this.getConfig().getInt("notifications.interval-ticks", 20), display);
+        String legacyClaimsUntil = this.getConfig().getString("players.legacy-name-claims-until", "");
+        if (!legacyClaimsUntil.isEmpty()) {
+            try {
+                PlayerIds.setLegacyClaimsUntil(LocalDate.parse(legacyClaimsUntil).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            } catch (DateTimeParseException e) {
+                this.getLogger().warning("Invalid players.legacy-name-claims-until '" + legacyClaimsUntil + "', expected YYYY-MM-DD");
+            }
+        }
+
+        try {
+            this.snapshotFormat = SnapshotFormat.byName(this.getConfig().getString("storage.format", "yaml"));
+        } catch (IllegalArgumentException e) {
+            this.getLogger().warning(e.getMessage() + ", falling back to yaml");
+            this.snapshotFormat = new YamlSnapshotFormat();
+        }
+
+        this.regionJournal = new RegionJournal(new File(this.getDataFolder(), "regions.journal"));
+        if (this.getConfig().getBoolean("metrics.enabled", false)) {
+            this.metrics = new RegionMetrics();
+        }
+        this.regionWriter = new RegionWriter(this.getDataFolder(), snapshotFormat, regionJournal, this.getLogger(),
+                fsyncIntervalMillis, metrics);
+        this.regionStore = new RegionStore();
+        if (this.getConfig().getBoolean("permission-cache.enabled", true)) {
+            this.permissionCache = new PermissionCache(this.getConfig().getInt("permission-cache.slots", 64));
+        }
+        this.protection = new ProtectionEngine(regionStore, permissionCache, metrics);
+        this.regionTracker = new RegionTracker(regionStore);
+        this.blockSnapshots = new BlockSnapshots(new File(this.getDataFolder(), "snapshots"), this.getLogger(),
+                Math.max(1, this.getConfig().getInt("snapshots.tick-budget-ms", 5)) * 1_000_000L,
+                this.getConfig().getLong("snapshots.max-blocks", 4_194_304L));
+        this.snapshotOnCreate = this.getConfig().getBoolean("snapshots.on-create", true);
+        regionTracker.addListener(new RegionTracker.Listener() {
+            @Override
+            public void onEnter(Player player, Region region) {
+                if (region.getGreeting() != null) {
+                    player.sendMessage(TextFormat.colorize('&', region.getGreeting()));
+                }
+            }
+
+            @Override
+            public void onLeave(Player player, Region region) {
+                if (region.getFarewell() != null) {
+                    player.sendMessage(TextFormat.colorize('&', region.getFarewell()));
+                }
+            }
+        });
         this.selections = new HashMap<>();
 
+        // Старые regions.yml хранят имена игроков: берём UUID из данных сервера, если игрок там известен
+        PlayerIds.setLegacyResolver(name -> {
+            IPlayer offlinePlayer = this.getServer().getOfflinePlayer(name);
+            UUID uuid = offlinePlayer != null ? offlinePlayer.getUniqueId() : null;
+            return uuid != null ? uuid : PlayerIds.offlineUuid(name);
+        });
+
         loadRegions();
+        this.getServer().getServiceManager().register(RegionQuery.class, regionStore.getQuery(), this, ServicePriority.NORMAL);
+        this.getServer().getServiceManager().register(RegionTracker.class, regionTracker, this, ServicePriority.NORMAL);
 
         createRegionWand();
 
         this.getServer().getPluginManager().registerEvents(this, this);
 
+        int dumpIntervalSeconds = this.getConfig().getInt("metrics.dump-interval-seconds", 0);
+        if (metrics != null && dumpIntervalSeconds > 0) {
+            this.getServer().getScheduler().scheduleRepeatingTask(this, this::dumpMetrics, dumpIntervalSeconds * 20);
+        }
+        this.getServer().getScheduler().scheduleRepeatingTask(this, blockSnapshots::tick, 1);
+        if (notifier.getInterval() > 0) {
+            this.getServer().getScheduler().scheduleRepeatingTask(this,
+                    () -> notifier.flush(this.getServer().getTick()), notifier.getInterval());
+        }
+
         this.getLogger().info("DeRegion plugin enabled!");
     }
 
     @Override
     public void onDisable() {
-        saveRegions();
+        if (saveTask != null) {
+            saveTask.cancel();
+            saveTask = null;
+        }
+        if (trace != null) {
+            stopTrace();
+        }
+        blockSnapshots.close();
+        // При выключении пишем синхронно, чтобы не потерять последние изменения
+        regionWriter.flush(regionStore.snapshot());
         this.getLogger().info("DeRegion plugin disabled!");
     }
 
@@ -72,7 +220,7 @@ public class Main extends PluginBase implements Listener {
         }
 
         if (args.length == 0) {
-            player.sendMessage(TextFormat.RED + "Usage: /region <wand|create|delete|list|addmember|removemember|info> [name] [player]");
+            player.sendMessage(TextFormat.RED + "Usage: /region <wand|create|grid|delete|list|here|addmember|removemember|set|info|snapshot|restore|stats|trace|export|import> [name] [player]");
             return true;
         }
 
@@ -89,6 +237,14 @@ public class Main extends PluginBase implements Listener {
                 createRegion(player, args[1]);
                 break;
 
+            case "grid":
+                if (args.length < 6 || args.length == 8 || args.length > 9) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region grid <prefix> <columns> <rows> <plot-size> <road-width> [owner|-] [x z]");
+                    return true;
+                }
+                createGrid(player, args);
+                break;
+
             case "delete":
                 if (args.length < 2) {
                     player.sendMessage(TextFormat.RED + "Usage: /region delete <name>");
@@ -98,7 +254,7 @@ public class Main extends PluginBase implements Listener {
                 break;
 
             case "list":
-                listRegions(player);
+                listRegions(player, Arrays.copyOfRange(args, 1, args.length));
                 break;
 
             case "addmember":
@@ -117,6 +273,14 @@ public class Main extends PluginBase implements Listener {
                 removeMember(player, args[1], args[2]);
                 break;
 
+            case "set":
+                if (args.length < 3) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region set <region> <" + String.join("|", Region.OPTIONS) + "> [value]");
+                    return true;
+                }
+                setOption(player, args[1], args[2], String.join(" ", Arrays.copyOfRange(args, 3, args.length)));
+                break;
+
             case "info":
                 if (args.length < 2) {
                     player.sendMessage(TextFormat.RED + "Usage: /region info <region>");
@@ -125,8 +289,49 @@ public class Main extends PluginBase implements Listener {
                 showRegionInfo(player, args[1]);
                 break;
 
+            case "here":
+                showRegionsHere(player);
+                break;
+
+            case "snapshot":
+            case "restore":
+                if (args.length < 2) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region " + args[0].toLowerCase() + " <region>");
+                    return true;
+                }
+                snapshotCommand(player, args[0].toLowerCase(), args[1]);
+                break;
+
+            case "stats":
+                showStats(player, args.length > 1 ? args[1] : null);
+                break;
+
+            case "trace":
+                if (args.length < 2) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region trace <start|stop>");
+                    return true;
+                }
+                traceCommand(player, args[1]);
+                break;
+
+            case "export":
+                if (args.length < 2) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region export <yaml|binary>");
+                    return true;
+                }
+                exportRegions(player, args[1]);
+                break;
+
+            case "import":
+                if (args.length < 2) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region import <yaml|binary>");
+                    return true;
+                }
+                importRegions(player, args[1]);
+                break;
+
             default:
-                player.sendMessage(TextFormat.RED + "Usage: /region <wand|create|delete|list|addmember|removemember|info> [name] [player]");
+                player.sendMessage(TextFormat.RED + "Usage: /region <wand|create|grid|delete|list|here|addmember|removemember|set|info|snapshot|restore|stats|trace|export|import> [name] [player]");
                 break;
         }
 
@@ -142,44 +347,172 @@ public class Main extends PluginBase implements Listener {
     }
 
     private void loadRegions() {
-        if (regionsConfig.exists("regions")) {
-            Map<String, Object> regionsData = regionsConfig.getSection("regions").getAllMap();
-            for (Map.Entry<String, Object> entry : regionsData.entrySet()) {
-                try {
-                    Map<String, Object> regionData = (Map<String, Object>) entry.getValue();
-                    Region region = Region.fromMap(regionData);
-                    regions.put(entry.getKey(), region);
-                } catch (Exception e) {
-                    getLogger().error("Error loading region: " + entry.getKey(), e);
-                }
+        long start = metrics != null ? System.nanoTime() : 0;
+        // Сразу разворачиваем только загруженные миры и те, которых касается журнал
+        Set<String> loadedLevels = getLoadedLevelNames();
+        Set<String> journalLevels = Collections.emptySet();
+        try {
+            journalLevels = regionJournal.readLevels();
+        } catch (IOException e) {
+            getLogger().error("Error reading " + regionJournal.getFile().getName(), e);
+        }
+        Set<String> activeLevels = new HashSet<>(loadedLevels);
+        activeLevels.addAll(journalLevels);
+
+        File snapshotFile = new File(this.getDataFolder(), snapshotFormat.getFileName());
+        long bytesRead = snapshotFile.length() + regionJournal.getFile().length();
+        boolean imported = false;
+        if (snapshotFile.exists()) {
+            readSnapshot(snapshotFormat, snapshotFile, regionStore, activeLevels);
+        } else {
+            // Переход между форматами: подхватываем снимок в другом формате, если он есть
+            SnapshotFormat other = snapshotFormat instanceof YamlSnapshotFormat ? new BinarySnapshotFormat() : new YamlSnapshotFormat();
+            File otherFile = new File(this.getDataFolder(), other.getFileName());
+            bytesRead += otherFile.length();
+            if (otherFile.exists() && readSnapshot(other, otherFile, regionStore, activeLevels)) {
+                this.getLogger().info("Imported " + (regionStore.size() + regionStore.dormantSize()) + " regions from " + otherFile.getName());
+                imported = true;
             }
         }
-        this.getLogger().info("Loaded " + regions.size() + " regions");
+        // Снимок в новом формате пишется только после журнала: сжатие очищает журнал,
+        // и записи, которые ещё не проиграны, пропали бы
+        boolean replayed = replayJournal(imported);
+
+        for (String levelName : journalLevels) {
+            if (!loadedLevels.contains(levelName)) {
+                regionStore.unloadLevel(levelName);
+            }
+        }
+        if (replayed) {
+            compactIfMigrated();
+        }
+        if (metrics != null) {
+            metrics.recordIo(RegionMetrics.Io.LOAD, start, bytesRead);
+        }
+        this.getLogger().info("Loaded " + regionStore.size() + " regions (" + regionStore.dormantSize() + " more in unloaded levels)");
+    }
+
+    // Разовая миграция: если при чтении попались имена вместо UUID, сразу переписываем снимок
+    private void compactIfMigrated() {
+        int migrated = PlayerIds.takeMigratedCount();
+        if (migrated > 0) {
+            this.getLogger().info("Migrated " + migrated + " player names to UUIDs");
+            regionWriter.compact(regionStore.snapshot());
+            journalBytes = 0;
+        }
     }
 
-    private void saveRegions() {
-        Map<String, Object> regionsData = new HashMap<>();
-        for (Map.Entry<String, Region> entry : regions.entrySet()) {
-            regionsData.put(entry.getKey(), entry.getValue().toMap());
+    private Set<String> getLoadedLevelNames() {
+        Set<String> names = new HashSet<>();
+        for (Level level : this.getServer().getLevels().values()) {
+            names.add(level.getName());
+        }
+        return names;
+    }
+
+    private boolean readSnapshot(SnapshotFormat format, File file, RegionStore store, Set<String> activeLevels) {
+        store.beginBatch();
+        try {
+            format.read(file, store, activeLevels::contains, (name, e) -> getLogger().error("Error loading region: " + name, e));
+            return true;
+        } catch (IOException e) {
+            getLogger().error("Error loading " + file.getName(), e);
+            return false;
+        } finally {
+            store.endBatch();
+        }
+    }
+
+    // Возвращает false, если журнал прочитан не до конца и остался нетронутым
+    private boolean replayJournal(boolean forceCompact) {
+        JournalReplay replay = new JournalReplay(regionJournal, regionStore);
+        if (!replay.run((index, e) -> getLogger().warning("Skipped journal entry #" + index + ": " + e))) {
+            getLogger().error("Error replaying " + regionJournal.getFile().getName(), replay.getError());
+        }
+        if (replay.getApplied() > 0) {
+            this.getLogger().info("Replayed " + replay.getApplied() + " journal entries");
+        }
+        if (replay.getSkipped() > 0) {
+            getLogger().warning("Skipped " + replay.getSkipped() + " journal entries");
+        }
+        if (replay.needsBackup()) {
+            try {
+                getLogger().warning("Original journal saved as " + replay.saveBackup(this.getDataFolder()).getName());
+            } catch (IOException e) {
+                getLogger().error("Could not save a copy of " + regionJournal.getFile().getName(), e);
+            }
+        }
+        if (!replay.canCompact()) {
+            getLogger().warning(regionJournal.getFile().getName() + " is kept as is until the next save");
+            return false;
+        }
+        // Сразу сворачиваем журнал в снимок, чтобы новые записи не легли после оборванного хвоста
+        if (forceCompact || !regionJournal.isEmpty()) {
+            regionWriter.compact(regionStore.snapshot());
+        }
+        return true;
+    }
+
+    // Каждое изменение - одна запись в журнал; полный снимок пишется, только когда журнал разрастётся
+    private void saveChange(byte[] record) {
+        regionWriter.append(record);
+        journalBytes += record.length;
+        lastChangeTick = this.getServer().getTick();
+        if (saveTask == null) {
+            saveTask = this.getServer().getScheduler().scheduleDelayedTask(this, this::compactIfQuiet, saveDelayTicks);
+        }
+    }
+
+    // Сворачиваем журнал не посреди серии изменений, а когда они затихнут
+    private void compactIfQuiet() {
+        int quietTicks = this.getServer().getTick() - lastChangeTick;
+        if (quietTicks < saveDelayTicks) {
+            saveTask = this.getServer().getScheduler().scheduleDelayedTask(this, this::compactIfQuiet, saveDelayTicks - quietTicks);
+            return;
+        }
+        saveTask = null;
+        if (journalBytes >= journalMaxBytes) {
+            regionWriter.compact(regionStore.snapshot());
+            journalBytes = 0;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLevelLoad(LevelLoadEvent event) {
+        String levelName = event.getLevel().getName();
+        int count = regionStore.loadLevel(levelName);
+        if (count > 0) {
+            this.getLogger().info("Loaded " + count + " regions for level " + levelName);
+            compactIfMigrated();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLevelUnload(LevelUnloadEvent event) {
+        String levelName = event.getLevel().getName();
+        int count = regionStore.unloadLevel(levelName);
+        if (count > 0) {
+            this.getLogger().info("Released " + count + " regions of unloaded level " + levelName);
         }
-        regionsConfig.set("regions", regionsData);
-        regionsConfig.save();
     }
 
     @EventHandler
     public void onPlayerInteract(PlayerInteractEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
         Player player = event.getPlayer();
         Item item = event.getItem();
+        boolean denied = false;
 
-        if (item != null && item.equals(regionWand, true, false)) {
+        // Сначала id: полное сравнение с NBT только для предметов того же типа, что и палочка
+        if (item != null && item.getId() == regionWand.getId() && item.equals(regionWand, true, false)) {
             event.setCancelled(true);
 
             Block block = event.getBlock();
             Position pos = new Position(block.getX(), block.getY(), block.getZ(), block.getLevel());
             
-            String playerName = player.getName();
+            UUID playerId = player.getUniqueId();
 
-            RegionSelection selection = selections.getOrDefault(playerName, new RegionSelection());
+            RegionSelection selection = selections.getOrDefault(playerId, new RegionSelection());
 
             if (event.getAction() == PlayerInteractEvent.Action.LEFT_CLICK_BLOCK) {
                 selection.setPos1(pos);
@@ -189,100 +522,324 @@ public class Main extends PluginBase implements Listener {
                 player.sendMessage(TextFormat.GREEN + "Second position set to: " + formatPosition(pos));
             }
 
-            selections.put(playerName, selection);
+            selections.put(playerId, selection);
 
             if (selection.isComplete()) {
                 player.sendMessage(TextFormat.YELLOW + "Selection complete! Use /region create <name> to create region.");
             }
+        } else if ((event.getAction() == PlayerInteractEvent.Action.RIGHT_CLICK_BLOCK
+                || event.getAction() == PlayerInteractEvent.Action.PHYSICAL)
+                && protectedBlocks.contains(event.getBlock().getId())) {
+            // Сундуки, двери, кнопки и прочее из interact.protected-blocks: в регионе без разрешённого
+            // interact только для участников. Тип блока - одно чтение из таблицы, до поиска регионов
+            Block block = event.getBlock();
+            denied = !player.isOp() && !protection.allows(RegionFlags.INTERACT, PlayerIds.of(player),
+                    LevelIds.of(block.getLevel()), block.getFloorX(), block.getFloorY(), block.getFloorZ());
+            if (denied) {
+                event.setCancelled(true);
+                if (event.getAction() != PlayerInteractEvent.Action.PHYSICAL) {
+                    notifyDenied(player, DenyNotifier.Reason.INTERACT, TextFormat.RED + "You cannot use blocks in this protected region!");
+                }
+            }
+            if (trace != null) {
+                traceBlock(TraceRecorder.INTERACT, player, block, !denied);
+            }
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.INTERACT, start, denied);
         }
     }
 
     @EventHandler
     public void onBlockBreak(BlockBreakEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
         Block block = event.getBlock();
-        Position pos = new Position(block.getX(), block.getY(), block.getZ(), block.getLevel());
-        
-        if (!isAllowed(event.getPlayer(), pos)) {
+
+        boolean allowed = isAllowed(event.getPlayer(), block.getLevel(), block.getFloorX(), block.getFloorY(), block.getFloorZ());
+        if (!allowed) {
             event.setCancelled(true);
-            event.getPlayer().sendMessage(TextFormat.RED + "You cannot break blocks in this protected region!");
+            notifyDenied(event.getPlayer(), DenyNotifier.Reason.BREAK, TextFormat.RED + "You cannot break blocks in this protected region!");
+        }
+        if (trace != null) {
+            traceBlock(TraceRecorder.BREAK, event.getPlayer(), block, allowed);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.BREAK, start, !allowed);
         }
     }
 
     @EventHandler
     public void onBlockPlace(BlockPlaceEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
         Block block = event.getBlock();
-        Position pos = new Position(block.getX(), block.getY(), block.getZ(), block.getLevel());
-        
-        if (!isAllowed(event.getPlayer(), pos)) {
+
+        boolean allowed = isAllowed(event.getPlayer(), block.getLevel(), block.getFloorX(), block.getFloorY(), block.getFloorZ());
+        if (!allowed) {
             event.setCancelled(true);
-            event.getPlayer().sendMessage(TextFormat.RED + "You cannot place blocks in this protected region!");
+            notifyDenied(event.getPlayer(), DenyNotifier.Reason.PLACE, TextFormat.RED + "You cannot place blocks in this protected region!");
+        }
+        if (trace != null) {
+            traceBlock(TraceRecorder.PLACE, event.getPlayer(), block, allowed);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.PLACE, start, !allowed);
         }
     }
 
     @EventHandler
     public void onBlockExplode(BlockExplodeEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
         // Защита от взрывов блоков
-        List<Block> blocksToRemove = new ArrayList<>();
-        for (Block block : event.getBlockList()) {
-            Position pos = new Position(block.getX(), block.getY(), block.getZ(), block.getLevel());
-            if (isPositionInAnyRegion(pos)) {
-                blocksToRemove.add(block);
-            }
+        boolean filtered = filterExplosion(event.getBlockList(), TraceRecorder.BLOCK_EXPLODE);
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.BLOCK_EXPLODE, start, filtered);
         }
-        event.getBlockList().removeAll(blocksToRemove);
     }
 
     @EventHandler
     public void onEntityExplode(EntityExplodeEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
         // Защита от взрывов сущностей
-        List<Block> blocksToRemove = new ArrayList<>();
-        for (Block block : event.getBlockList()) {
-            Position pos = new Position(block.getX(), block.getY(), block.getZ(), block.getLevel());
-            if (isPositionInAnyRegion(pos)) {
-                blocksToRemove.add(block);
+        boolean filtered = filterExplosion(event.getBlockList(), TraceRecorder.ENTITY_EXPLODE);
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.ENTITY_EXPLODE, start, filtered);
+        }
+    }
+
+    // Физические события приходят тысячами за тик (фермы лавы, поршневые машины), поэтому
+    // вне регионов они отсекаются битовой картой чанков и до полной проверки доходят только на границах
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        Block from = event.getFrom();
+        Block to = event.getTo();
+        boolean denied = protection.crossesInto(RegionFlags.FLOW, LevelIds.of(to.getLevel()), from.getFloorX(), from.getFloorY(), from.getFloorZ(),
+                to.getFloorX(), to.getFloorY(), to.getFloorZ());
+        if (denied) {
+            event.setCancelled(true);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.PHYSICS, start, denied);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockPiston(BlockPistonEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        Block piston = event.getBlock();
+        int levelId = LevelIds.of(piston.getLevel());
+        int x = piston.getFloorX();
+        int y = piston.getFloorY();
+        int z = piston.getFloorZ();
+        // Выдвигаясь, поршень толкает блоки по своему направлению, липкий при втягивании тянет их к себе
+        BlockFace face = event.getDirection();
+        int sign = event.isExtending() ? 1 : -1;
+        int dx = face.getXOffset() * sign;
+        int dy = face.getYOffset() * sign;
+        int dz = face.getZOffset() * sign;
+
+        boolean denied = false;
+        for (Block block : event.getBlocks()) {
+            int bx = block.getFloorX();
+            int by = block.getFloorY();
+            int bz = block.getFloorZ();
+            if (protection.crossesInto(RegionFlags.BUILD, levelId, x, y, z, bx, by, bz)
+                    || protection.crossesInto(RegionFlags.BUILD, levelId, x, y, z, bx + dx, by + dy, bz + dz)) {
+                denied = true;
+                break;
             }
         }
-        event.getBlockList().removeAll(blocksToRemove);
+        if (!denied) {
+            for (Block block : event.getDestroyedBlocks()) {
+                if (protection.crossesInto(RegionFlags.BUILD, levelId, x, y, z, block.getFloorX(), block.getFloorY(), block.getFloorZ())) {
+                    denied = true;
+                    break;
+                }
+            }
+        }
+        if (denied) {
+            event.setCancelled(true);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.PHYSICS, start, denied);
+        }
     }
 
-    @EventHandler
-    public void onPlayerQuit(PlayerQuitEvent event) {
-        selections.remove(event.getPlayer().getName());
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        // Источник огня событие не сообщает, поэтому блоки регионов без флага fire не сгорают вовсе
+        Block block = event.getBlock();
+        boolean denied = !protection.allows(RegionFlags.FIRE, LevelIds.of(block.getLevel()),
+                block.getFloorX(), block.getFloorY(), block.getFloorZ());
+        if (denied) {
+            event.setCancelled(true);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.PHYSICS, start, denied);
+        }
     }
 
-    private boolean isAllowed(Player player, Position pos) {
-        if (player.isOp()) {
-            return true;
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        Block source = event.getSource();
+        Block block = event.getBlock();
+        boolean denied = protection.crossesInto(RegionFlags.FIRE, LevelIds.of(block.getLevel()), source.getFloorX(), source.getFloorY(), source.getFloorZ(),
+                block.getFloorX(), block.getFloorY(), block.getFloorZ());
+        if (denied) {
+            event.setCancelled(true);
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.PHYSICS, start, denied);
         }
+    }
 
-        for (Region region : regions.values()) {
-            if (region.contains(pos) && !region.canBuild(player.getName())) {
-                return false;
-            }
+    @EventHandler(ignoreCancelled = true)
+    public void onEntityDamageByEntity(EntityDamageByEntityEvent event) {
+        if (!(event.getEntity() instanceof Player) || !(event.getDamager() instanceof Player)) {
+            return;
+        }
+        // Бой игроков запрещён, если pvp выключен там, где стоит хотя бы один из двоих
+        Player victim = (Player) event.getEntity();
+        Player attacker = (Player) event.getDamager();
+        if (!allowsPvp(victim) || !allowsPvp(attacker)) {
+            event.setCancelled(true);
+            notifyDenied(attacker, DenyNotifier.Reason.PVP, TextFormat.RED + "PvP is disabled in this region!");
         }
-        return true;
     }
 
-    private boolean isPositionInAnyRegion(Position pos) {
-        for (Region region : regions.values()) {
-            if (region.contains(pos)) {
-                return true;
+    private boolean allowsPvp(Player player) {
+        return protection.allows(RegionFlags.PVP, LevelIds.of(player.getLevel()),
+                player.getFloorX(), player.getFloorY(), player.getFloorZ());
+    }
+
+    // Возвращает true, если из взрыва пришлось убрать хотя бы один блок
+    private boolean filterExplosion(List<Block> blocks, byte traceType) {
+        if (blocks.isEmpty()) {
+            return false;
+        }
+
+        // Для трассы координаты нужны до фильтрации
+        int count = blocks.size();
+        int[] xs = trace != null ? new int[count] : null;
+        int[] ys = trace != null ? new int[count] : null;
+        int[] zs = trace != null ? new int[count] : null;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        Level level = null;
+        int i = 0;
+        for (Block block : blocks) {
+            int x = block.getFloorX();
+            int y = block.getFloorY();
+            int z = block.getFloorZ();
+            if (xs != null) {
+                xs[i] = x;
+                ys[i] = y;
+                zs[i] = z;
+                i++;
             }
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+            level = block.getLevel();
+        }
+
+        // Взрыв не задел ни одного региона - список блоков не трогаем
+        int levelId = LevelIds.of(level);
+        Region[] regionsHit = protection.getExplosionCandidates(levelId, minX, minY, minZ, maxX, maxY, maxZ);
+        boolean filtered = regionsHit.length > 0 && blocks.removeIf(block ->
+                ProtectionEngine.isDenied(regionsHit, RegionFlags.EXPLOSIONS, levelId, block.getFloorX(), block.getFloorY(), block.getFloorZ()));
+        if (xs != null) {
+            trace.recordExplosion(traceType, this.getServer().getTick(), levelId, xs, ys, zs, count, count - blocks.size());
+            checkTraceFull();
         }
-        return false;
+        return filtered;
     }
 
-    private boolean doesSelectionOverlapWithExistingRegions(Position pos1, Position pos2) {
-        for (Region region : regions.values()) {
-            if (region.overlapsWith(pos1, pos2)) {
-                return true;
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        // Обновляем имя игрока; если он упомянут в регионах, новое имя нужно сохранить
+        Player player = event.getPlayer();
+        if (PlayerIds.register(player.getUniqueId(), player.getName())) {
+            int playerId = PlayerIds.of(player);
+            if (PlayerIds.isRetained(playerId)) {
+                saveChange(RegionJournal.player(playerId));
             }
         }
-        return false;
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        selections.remove(event.getPlayer().getUniqueId());
+        if (permissionCache != null) {
+            permissionCache.remove(event.getPlayer().getUniqueId());
+        }
+        regionTracker.remove(event.getPlayer());
+        notifier.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        // Повороты головы и шаги внутри блока - подавляющая часть событий, их отсекаем без обращений к картам
+        if (from.getFloorX() == to.getFloorX() && from.getFloorY() == to.getFloorY()
+                && from.getFloorZ() == to.getFloorZ() && from.getLevel() == to.getLevel()) {
+            return;
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        Player player = event.getPlayer();
+        Region denied = regionTracker.moveTo(player, from, to, player.isOp());
+        if (denied != null) {
+            event.setCancelled(true);
+            notifyDenied(player, DenyNotifier.Reason.ENTER, TextFormat.RED + "You cannot enter region '" + denied.getName() + "'!");
+        }
+        if (metrics != null) {
+            metrics.record(RegionMetrics.Check.MOVE, start, denied != null);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        Player player = event.getPlayer();
+        Region denied = regionTracker.moveTo(player, event.getFrom(), event.getTo(), player.isOp());
+        if (denied != null) {
+            event.setCancelled(true);
+            notifyDenied(player, DenyNotifier.Reason.ENTER, TextFormat.RED + "You cannot enter region '" + denied.getName() + "'!");
+        }
+    }
+
+    private void notifyDenied(Player player, DenyNotifier.Reason reason, String message) {
+        notifier.deny(player, reason, message, this.getServer().getTick());
+    }
+
+    private boolean isAllowed(Player player, Level level, int x, int y, int z) {
+        return player.isOp() || protection.canBuild(player.getUniqueId(), LevelIds.of(level), x, y, z);
+    }
+
+    private void traceBlock(byte type, Player player, Block block, boolean allowed) {
+        trace.recordBlock(type, this.getServer().getTick(), LevelIds.of(block.getLevel()),
+                block.getFloorX(), block.getFloorY(), block.getFloorZ(), PlayerIds.of(player), player.isOp(), !allowed);
+        checkTraceFull();
+    }
+
+    private void checkTraceFull() {
+        if (trace.isFull()) {
+            this.getLogger().warning("Trace " + trace.getFile().getName() + " reached trace.max-mb, stopping it");
+            stopTrace();
+        }
     }
 
     private String formatPosition(Position pos) {
-        return String.format("(%d, %d, %d)", pos.getFloorX(), pos.getFloorY(), pos.getFloorZ());
+        return formatPosition(pos.getFloorX(), pos.getFloorY(), pos.getFloorZ());
+    }
+
+    private String formatPosition(int x, int y, int z) {
+        return String.format("(%d, %d, %d)", x, y, z);
     }
 
     private void giveWand(Player player) {
@@ -291,250 +848,1075 @@ public class Main extends PluginBase implements Listener {
     }
 
     private void createRegion(Player player, String name) {
-        if (regions.containsKey(name)) {
+        if (regionStore.contains(name)) {
             player.sendMessage(TextFormat.RED + "A region with that name already exists!");
             return;
         }
 
-        RegionSelection selection = selections.get(player.getName());
+        RegionSelection selection = selections.get(player.getUniqueId());
         if (selection == null || !selection.isComplete()) {
             player.sendMessage(TextFormat.RED + "You need to select an area first with the region wand!");
             return;
         }
 
-        // Проверка на пересечение с существующими регионами
-        if (doesSelectionOverlapWithExistingRegions(selection.getPos1(), selection.getPos2())) {
-            player.sendMessage(TextFormat.RED + "This area overlaps with an existing region! Please choose a different area.");
+        if (selection.getPos1().getLevel() != selection.getPos2().getLevel()) {
+            player.sendMessage(TextFormat.RED + "Both positions must be in the same level!");
+            return;
+        }
+
+        int ownerId = PlayerIds.of(player);
+        if (maxRegionsPerPlayer > 0 && regionStore.getOwnedCount(ownerId) >= maxRegionsPerPlayer
+                && !player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You already own " + regionStore.getOwnedCount(ownerId)
+                    + " regions, the limit is " + maxRegionsPerPlayer + "!");
             return;
         }
 
-        Region region = new Region(name, player.getName(), selection.getPos1(), selection.getPos2());
-        regions.put(name, region);
-        saveRegions();
+        Region region = new Region(name, ownerId, selection.getPos1(), selection.getPos2());
+
+        // Проверка на пересечение с существующими регионами
+        RegionIndex index = regionStore.getIndex();
+        if (overlapMode.equals(OVERLAP_DENY)) {
+            List<RegionQuery.Overlap> overlaps = index.getOverlaps(region.getLevelId(), region.getMinX(), region.getMinY(),
+                    region.getMinZ(), region.getMaxX(), region.getMaxY(), region.getMaxZ());
+            if (!overlaps.isEmpty()) {
+                reportOverlaps(player, region, overlaps);
+                return;
+            }
+        } else {
+            List<Region> overlapping = index.getRegionsIntersecting(region.getLevelId(), region.getMinX(), region.getMinY(),
+                    region.getMinZ(), region.getMaxX(), region.getMaxY(), region.getMaxZ());
+            String conflict = placeAmong(region, overlapping, ownerId, player.hasPermission("regionprotect.admin"));
+            if (conflict != null) {
+                player.sendMessage(TextFormat.RED + "This area " + conflict);
+                return;
+            }
+        }
+
+        regionStore.put(region);
+        savePlayer(ownerId);
+        saveChange(RegionJournal.create(region));
 
         player.sendMessage(TextFormat.GREEN + "Region '" + name + "' created successfully!");
-        selections.remove(player.getName());
+        selections.remove(player.getUniqueId());
+        // Исходный вид региона, к которому можно откатиться; слишком большие регионы пропускаем молча
+        if (snapshotOnCreate && !blockSnapshots.isTooLarge(region)) {
+            blockSnapshots.capture(region, selection.getPos1().getLevel(), player);
+        }
+    }
+
+    // Все мешающие регионы с объёмом пересечения и ближайшее место, куда выделение того же размера помещается
+    private void reportOverlaps(Player player, Region region, List<RegionQuery.Overlap> overlaps) {
+        StringBuilder message = new StringBuilder(TextFormat.RED + "This area overlaps " + overlaps.size()
+                + (overlaps.size() == 1 ? " region:" : " regions:"));
+        for (int i = 0; i < Math.min(OVERLAPS_SHOWN, overlaps.size()); i++) {
+            RegionQuery.Overlap overlap = overlaps.get(i);
+            message.append('\n').append(TextFormat.WHITE).append("- ").append(TextFormat.YELLOW).append(overlap.getRegion().getName())
+                    .append(TextFormat.GRAY).append(" (").append(overlap.getRegion().getOwnerName()).append("): ")
+                    .append(overlap.getVolume()).append(" blocks");
+        }
+        if (overlaps.size() > OVERLAPS_SHOWN) {
+            message.append('\n').append(TextFormat.GRAY).append("... and ").append(overlaps.size() - OVERLAPS_SHOWN).append(" more");
+        }
+        int[] free = regionStore.getIndex().findFreeSpace(region.getLevelId(), region.getMinX(), region.getMinY(), region.getMinZ(),
+                region.getMaxX(), region.getMaxY(), region.getMaxZ(), FREE_SPACE_DISTANCE);
+        if (free != null) {
+            message.append('\n').append(TextFormat.YELLOW).append("Nearest free spot of the same size: ")
+                    .append(formatPosition(free[0], free[1], free[2])).append(" - ").append(formatPosition(free[3], free[4], free[5]));
+        }
+        player.sendMessage(message.toString());
+    }
+
+    // /region here: регионы в точке игрока, а если их нет - ближайший регион
+    private void showRegionsHere(Player player) {
+        int levelId = LevelIds.of(player.getLevel());
+        int x = player.getFloorX();
+        int y = player.getFloorY();
+        int z = player.getFloorZ();
+        List<Region> regions = new ArrayList<>(regionStore.getIndex().getRegionsAt(player.getLevel().getName(), x, y, z));
+        if (regions.isEmpty()) {
+            Region nearest = regionStore.getIndex().getNearestRegion(levelId, x, y, z, NEAREST_REGION_DISTANCE);
+            if (nearest == null) {
+                player.sendMessage(TextFormat.YELLOW + "No regions here or within " + NEAREST_REGION_DISTANCE + " blocks.");
+            } else {
+                long distance = Math.round(Math.sqrt(RegionIndex.distanceSquared(nearest, x, y, z)));
+                player.sendMessage(TextFormat.YELLOW + "No regions here. Nearest: " + TextFormat.WHITE + nearest.getName()
+                        + TextFormat.GRAY + " (" + nearest.getOwnerName() + "), " + distance + " blocks away");
+            }
+            return;
+        }
+        // Сначала главные: тот, чьи флаги действуют, стоит первым
+        regions.sort((a, b) -> Integer.compare(b.getPriority(), a.getPriority()));
+        StringBuilder message = new StringBuilder(TextFormat.GOLD + "=== Regions at " + formatPosition(x, y, z) + " ===");
+        for (Region region : regions) {
+            message.append('\n').append(TextFormat.WHITE).append(region.getName())
+                    .append(TextFormat.GRAY).append(" (").append(region.getOwnerName());
+            if (region.getPriority() != 0) {
+                message.append(", priority ").append(region.getPriority());
+            }
+            message.append(')');
+        }
+        player.sendMessage(message.toString());
+    }
+
+    // Проверяет пересечения нового региона по правилу regions.overlap и возвращает причину отказа или null.
+    // Вложенный регион главнее всех, кто его объемлет, и уступает тем, кто лежит внутри него
+    private String placeAmong(Region region, List<Region> overlapping, int ownerId, boolean admin) {
+        if (overlapping.isEmpty()) {
+            return null;
+        }
+        Region parentRegion = null;
+        Region childRegion = null;
+        int parentPriority = Integer.MIN_VALUE;
+        int childPriority = Integer.MAX_VALUE;
+        for (Region other : overlapping) {
+            if (overlapMode.equals(OVERLAP_DENY)) {
+                return "overlaps region '" + other.getName() + "'!";
+            }
+            boolean parent = RegionIndex.encloses(other, region);
+            boolean child = !parent && RegionIndex.encloses(region, other);
+            if (overlapMode.equals(OVERLAP_NESTED) && !parent && !child) {
+                return "partially overlaps region '" + other.getName() + "'! Regions may only lie entirely inside each other.";
+            }
+            if (!admin && !other.canBuild(ownerId)) {
+                return "overlaps region '" + other.getName() + "', which you are not a member of!";
+            }
+            if (child) {
+                if (other.getPriority() < childPriority) {
+                    childPriority = other.getPriority();
+                    childRegion = other;
+                }
+            } else if (other.getPriority() > parentPriority) {
+                parentPriority = other.getPriority();
+                parentRegion = other;
+            }
+        }
+        // Между родителем и ребёнком должен найтись свободный приоритет, иначе новый регион
+        // сравняется с ребёнком и флаги в нём будут зависеть от порядка регионов
+        if (parentRegion != null && childRegion != null && (long) childPriority - parentPriority < 2) {
+            return "lies between '" + parentRegion.getName() + "' (priority " + parentPriority + ") and '"
+                    + childRegion.getName() + "' (priority " + childPriority + "), so no priority fits! Raise the priority of '"
+                    + childRegion.getName() + "' first: /region set " + childRegion.getName() + " priority " + (parentPriority + 2);
+        }
+        int priority = parentPriority != Integer.MIN_VALUE ? parentPriority + 1 : childPriority - 1;
+        region.setOption(Region.OPTION_PRIORITY, String.valueOf(priority));
+        return null;
+    }
+
+    // Сетка участков одной командой: пересечения всей сетки проверяются одним запросом к индексу,
+    // участки вставляются одним пакетом, а на диск пишется один снимок вместо записи на каждый участок
+    private void createGrid(Player player, String[] args) {
+        if (!player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't have permission to create plot grids!");
+            return;
+        }
+
+        int ownerId = PlayerIds.of(player);
+        if (args.length > 6) {
+            ownerId = args[6].equals("-") ? PlayerIds.of(PlayerIds.UNCLAIMED) : findPlayer(args[6]);
+            if (ownerId == PlayerIds.NONE) {
+                player.sendMessage(TextFormat.RED + "Player '" + args[6] + "' has never played on this server!");
+                return;
+            }
+        }
+
+        // Сетка начинается под игроком или в заданной точке его мира и занимает всю высоту мира
+        Level level = player.getLevel();
+        PlotGrid grid;
+        try {
+            int originX = args.length > 8 ? Integer.parseInt(args[7]) : player.getFloorX();
+            int originZ = args.length > 8 ? Integer.parseInt(args[8]) : player.getFloorZ();
+            grid = new PlotGrid(args[1], level.getName(), originX, originZ, level.getMinBlockY(), level.getMaxBlockY(),
+                    Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]), ownerId);
+        } catch (NumberFormatException e) {
+            player.sendMessage(TextFormat.RED + "Grid size, plot size, road width and origin must be numbers!");
+            return;
+        } catch (IllegalArgumentException e) {
+            player.sendMessage(TextFormat.RED + e.getMessage());
+            return;
+        }
+
+        List<Region> plots = grid.createAll();
+        for (Region plot : plots) {
+            if (regionStore.contains(plot.getName())) {
+                player.sendMessage(TextFormat.RED + "A region named '" + plot.getName() + "' already exists! Choose another prefix.");
+                return;
+            }
+        }
+
+        // Каждый найденный регион раскладывается по участкам, которые он задевает
+        int levelId = LevelIds.of(level);
+        Map<Integer, List<Region>> overlaps = new HashMap<>();
+        for (Region other : regionStore.getIndex().getRegionsIntersecting(levelId, grid.getMinX(), grid.getMinY(), grid.getMinZ(),
+                grid.getMaxX(), grid.getMaxY(), grid.getMaxZ())) {
+            int[] hit = grid.plotsIn(other.getMinX(), other.getMinY(), other.getMinZ(), other.getMaxX(), other.getMaxY(), other.getMaxZ());
+            if (hit == null) {
+                continue;
+            }
+            for (int row = hit[1]; row <= hit[3]; row++) {
+                for (int column = hit[0]; column <= hit[2]; column++) {
+                    overlaps.computeIfAbsent(row * grid.getColumns() + column, k -> new ArrayList<>()).add(other);
+                }
+            }
+        }
+        int conflicts = 0;
+        String firstConflict = null;
+        for (Map.Entry<Integer, List<Region>> entry : overlaps.entrySet()) {
+            Region plot = plots.get(entry.getKey());
+            String conflict = placeAmong(plot, entry.getValue(), ownerId, true);
+            if (conflict != null) {
+                conflicts++;
+                if (firstConflict == null) {
+                    firstConflict = "Plot '" + plot.getName() + "' " + conflict;
+                }
+            }
+        }
+        if (conflicts > 0) {
+            player.sendMessage(TextFormat.RED + "" + conflicts + " of " + plots.size() + " plots conflict with existing regions. " + firstConflict);
+            return;
+        }
+
+        regionStore.putAll(plots);
+        if (ownerId != PlayerIds.of(PlayerIds.UNCLAIMED)) {
+            PlayerIds.retain(ownerId);
+        }
+        regionWriter.compact(regionStore.snapshot());
+        journalBytes = 0;
+        player.sendMessage(TextFormat.GREEN + "Created " + plots.size() + " plots from " + formatPosition(grid.getMinX(), grid.getMinY(), grid.getMinZ())
+                + " to " + formatPosition(grid.getMaxX(), grid.getMaxY(), grid.getMaxZ()) + "!");
+    }
+
+    private Region findRegion(Player player, String name) {
+        Region region = regionStore.get(name);
+        if (region == null) {
+            String dormantLevel = regionStore.getDormantLevel(name);
+            if (dormantLevel != null) {
+                player.sendMessage(TextFormat.RED + "Region '" + name + "' is in level '" + dormantLevel + "', which is not loaded!");
+            } else {
+                player.sendMessage(TextFormat.RED + "Region '" + name + "' not found!");
+            }
+        }
+        return region;
     }
 
     private void deleteRegion(Player player, String name) {
-        Region region = regions.get(name);
+        Region region = findRegion(player, name);
         if (region == null) {
-            player.sendMessage(TextFormat.RED + "Region '" + name + "' not found!");
             return;
         }
 
-        if (!region.isOwner(player.getName()) && !player.hasPermission("regionprotect.admin")) {
+        if (!region.isOwner(PlayerIds.of(player)) && !player.hasPermission("regionprotect.admin")) {
             player.sendMessage(TextFormat.RED + "You don't own this region!");
             return;
         }
 
-        regions.remove(name);
-        saveRegions();
+        regionStore.remove(name);
+        saveChange(RegionJournal.delete(region));
+        blockSnapshots.delete(name);
         player.sendMessage(TextFormat.GREEN + "Region '" + name + "' deleted successfully!");
     }
 
-    private void listRegions(Player player) {
-        if (regions.isEmpty()) {
+    // /region snapshot|restore <регион>: снятие и откат идут порциями по тикам, ход виден в /region info
+    private void snapshotCommand(Player player, String action, String name) {
+        Region region = findRegion(player, name);
+        if (region == null) {
+            return;
+        }
+
+        if (!region.isOwner(PlayerIds.of(player)) && !player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't own this region!");
+            return;
+        }
+
+        Level level = this.getServer().getLevelByName(region.getLevelName());
+        if (level == null) {
+            player.sendMessage(TextFormat.RED + "Level '" + region.getLevelName() + "' is not loaded!");
+            return;
+        }
+
+        String error = action.equals("snapshot")
+                ? blockSnapshots.capture(region, level, player)
+                : blockSnapshots.restore(region, level, player);
+        if (error != null) {
+            player.sendMessage(TextFormat.RED + error + "!");
+            return;
+        }
+        player.sendMessage(TextFormat.YELLOW + (action.equals("snapshot") ? "Taking snapshot of" : "Restoring")
+                + " region '" + name + "'. Progress: /region info " + name);
+    }
+
+    // /region list [mine|member] [level:<мир>] [name:<префикс>] [страница]. Страница уходит одним сообщением,
+    // а не сообщением на регион, и собирается из вторичных индексов без обхода всех регионов
+    private void listRegions(Player player, String[] args) {
+        if (regionStore.isEmpty()) {
             player.sendMessage(TextFormat.YELLOW + "No regions defined.");
             return;
         }
 
-        player.sendMessage(TextFormat.GOLD + "=== Regions ===");
-        for (Region region : regions.values()) {
-            String ownerText = region.isOwner(player.getName()) ? TextFormat.GREEN + " (Yours)" : "";
-            player.sendMessage(TextFormat.WHITE + "- " + region.getName() + ownerText);
+        int playerId = PlayerIds.of(player);
+        int ownerId = PlayerIds.NONE;
+        int memberId = PlayerIds.NONE;
+        String levelName = null;
+        String prefix = null;
+        int page = 1;
+        for (String arg : args) {
+            String lower = arg.toLowerCase();
+            if (lower.equals("mine")) {
+                ownerId = playerId;
+            } else if (lower.equals("member")) {
+                memberId = playerId;
+            } else if (lower.startsWith("level:")) {
+                levelName = arg.substring("level:".length());
+            } else if (lower.startsWith("name:")) {
+                prefix = arg.substring("name:".length());
+            } else {
+                try {
+                    page = Math.max(1, Integer.parseInt(arg));
+                } catch (NumberFormatException e) {
+                    player.sendMessage(TextFormat.RED + "Usage: /region list [mine|member] [level:<level>] [name:<prefix>] [page]");
+                    return;
+                }
+            }
+        }
+
+        RegionStore.Page result = regionStore.list(ownerId, memberId, levelName, prefix, page, LIST_PAGE_SIZE);
+        if (result.getTotal() == 0) {
+            player.sendMessage(TextFormat.YELLOW + "No regions match.");
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(TextFormat.GOLD).append("=== Regions (page ").append(Math.min(page, result.getPageCount())).append('/')
+                .append(result.getPageCount()).append(", ").append(result.getTotal()).append(" total) ===");
+        if (result.getNames().isEmpty()) {
+            message.append('\n').append(TextFormat.GRAY).append("No more regions, last page is ").append(result.getPageCount());
         }
+        for (String name : result.getNames()) {
+            message.append('\n');
+            Region region = regionStore.get(name);
+            if (region == null) {
+                message.append(TextFormat.GRAY).append("- ").append(name)
+                        .append(" (level ").append(regionStore.getDormantLevel(name)).append(" not loaded)");
+            } else {
+                message.append(TextFormat.WHITE).append("- ").append(name);
+                if (region.isOwner(playerId)) {
+                    message.append(TextFormat.GREEN).append(" (Yours)");
+                } else if (region.isMember(playerId)) {
+                    message.append(TextFormat.AQUA).append(" (Member)");
+                }
+            }
+        }
+        player.sendMessage(message.toString());
     }
 
     private void addMember(Player player, String regionName, String memberName) {
-        Region region = regions.get(regionName);
+        Region region = findRegion(player, regionName);
+        if (region == null) {
+            return;
+        }
+
+        if (!region.isOwner(PlayerIds.of(player)) && !player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't own this region!");
+            return;
+        }
+
+        int memberId = findPlayer(memberName);
+        if (memberId == PlayerIds.NONE) {
+            player.sendMessage(TextFormat.RED + "Player '" + memberName + "' has never played on this server!");
+            return;
+        }
+
+        regionStore.addMember(region, memberId);
+        savePlayer(memberId);
+        saveChange(RegionJournal.addMember(region, memberId));
+        player.sendMessage(TextFormat.GREEN + "Player '" + PlayerIds.nameOf(memberId) + "' added to region '" + regionName + "'!");
+    }
+
+    private void setOption(Player player, String regionName, String key, String value) {
+        Region region = findRegion(player, regionName);
         if (region == null) {
-            player.sendMessage(TextFormat.RED + "Region '" + regionName + "' not found!");
             return;
         }
 
-        if (!region.isOwner(player.getName()) && !player.hasPermission("regionprotect.admin")) {
+        if (!region.isOwner(PlayerIds.of(player)) && !player.hasPermission("regionprotect.admin")) {
             player.sendMessage(TextFormat.RED + "You don't own this region!");
             return;
         }
 
-        region.addMember(memberName);
-        saveRegions();
-        player.sendMessage(TextFormat.GREEN + "Player '" + memberName + "' added to region '" + regionName + "'!");
+        String option = key.toLowerCase();
+        if (!Region.OPTIONS.contains(option)) {
+            player.sendMessage(TextFormat.RED + "Unknown option '" + key + "'! Use one of: " + String.join(", ", Region.OPTIONS));
+            return;
+        }
+
+        try {
+            region = regionStore.setOption(region, option, value);
+        } catch (IllegalArgumentException e) {
+            player.sendMessage(TextFormat.RED + e.getMessage());
+            return;
+        }
+        saveChange(RegionJournal.setOption(region, option, value));
+        if (value.isEmpty()) {
+            player.sendMessage(TextFormat.GREEN + "Option '" + option + "' of region '" + regionName + "' reset!");
+        } else {
+            player.sendMessage(TextFormat.GREEN + "Option '" + option + "' of region '" + regionName + "' set to '" + region.getOption(option) + "'!");
+        }
     }
 
     private void removeMember(Player player, String regionName, String memberName) {
-        Region region = regions.get(regionName);
+        Region region = findRegion(player, regionName);
         if (region == null) {
-            player.sendMessage(TextFormat.RED + "Region '" + regionName + "' not found!");
             return;
         }
 
-        if (!region.isOwner(player.getName()) && !player.hasPermission("regionprotect.admin")) {
+        if (!region.isOwner(PlayerIds.of(player)) && !player.hasPermission("regionprotect.admin")) {
             player.sendMessage(TextFormat.RED + "You don't own this region!");
             return;
         }
 
-        region.removeMember(memberName);
-        saveRegions();
-        player.sendMessage(TextFormat.GREEN + "Player '" + memberName + "' removed from region '" + regionName + "'!");
+        int memberId = PlayerIds.find(memberName);
+        if (memberId == PlayerIds.NONE || !region.isMember(memberId)) {
+            player.sendMessage(TextFormat.RED + "Player '" + memberName + "' is not a member of region '" + regionName + "'!");
+            return;
+        }
+
+        regionStore.removeMember(region, memberId);
+        saveChange(RegionJournal.removeMember(region, memberId));
+        player.sendMessage(TextFormat.GREEN + "Player '" + PlayerIds.nameOf(memberId) + "' removed from region '" + regionName + "'!");
+    }
+
+    // Онлайн-игрок, уже известный плагину или хотя бы заходивший на сервер
+    private int findPlayer(String name) {
+        Player online = this.getServer().getPlayerExact(name);
+        if (online != null) {
+            return PlayerIds.of(online);
+        }
+        int playerId = PlayerIds.find(name);
+        if (playerId != PlayerIds.NONE) {
+            return playerId;
+        }
+        IPlayer offlinePlayer = this.getServer().getOfflinePlayer(name);
+        if (offlinePlayer == null || offlinePlayer.getUniqueId() == null) {
+            return PlayerIds.NONE;
+        }
+        PlayerIds.register(offlinePlayer.getUniqueId(), offlinePlayer.getName() != null ? offlinePlayer.getName() : name);
+        return PlayerIds.of(offlinePlayer.getUniqueId());
+    }
+
+    // Имя игрока, впервые попавшего в регион, пишем в журнал, иначе до сжатия оно известно только в памяти
+    private void savePlayer(int playerId) {
+        if (PlayerIds.retain(playerId)) {
+            saveChange(RegionJournal.player(playerId));
+        }
+    }
+
+    private void exportRegions(Player player, String formatName) {
+        if (!player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't have permission to export regions!");
+            return;
+        }
+
+        SnapshotFormat format;
+        try {
+            format = SnapshotFormat.byName(formatName);
+        } catch (IllegalArgumentException e) {
+            player.sendMessage(TextFormat.RED + "Unknown format '" + formatName + "'! Use yaml or binary.");
+            return;
+        }
+
+        StorageSnapshot snapshot = regionStore.snapshot();
+        int count = snapshot.getRegionCount();
+        String playerName = player.getName();
+        regionWriter.export(format, snapshot, () -> this.getServer().getScheduler().scheduleTask(this, () -> {
+            Player target = this.getServer().getPlayerExact(playerName);
+            if (target != null) {
+                target.sendMessage(TextFormat.GREEN + "Exported " + count + " regions to " + format.getFileName() + "!");
+            }
+        }));
+        player.sendMessage(TextFormat.YELLOW + "Exporting regions to " + format.getFileName() + "...");
+    }
+
+    // Заменяет все регионы содержимым файла, например после ручной правки regions.yml
+    private void importRegions(Player player, String formatName) {
+        if (!player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't have permission to import regions!");
+            return;
+        }
+
+        SnapshotFormat format;
+        try {
+            format = SnapshotFormat.byName(formatName);
+        } catch (IllegalArgumentException e) {
+            player.sendMessage(TextFormat.RED + "Unknown format '" + formatName + "'! Use yaml or binary.");
+            return;
+        }
+
+        File file = new File(this.getDataFolder(), format.getFileName());
+        if (!file.exists()) {
+            player.sendMessage(TextFormat.RED + file.getName() + " not found!");
+            return;
+        }
+
+        RegionStore imported = new RegionStore();
+        if (!readSnapshot(format, file, imported, getLoadedLevelNames())) {
+            player.sendMessage(TextFormat.RED + "Could not read " + file.getName() + ", see console for details.");
+            return;
+        }
+
+        regionStore.replaceWith(imported);
+        regionWriter.compact(regionStore.snapshot());
+        journalBytes = 0;
+        int count = regionStore.size() + regionStore.dormantSize();
+        player.sendMessage(TextFormat.GREEN + "Imported " + count + " regions from " + file.getName() + "!");
+    }
+
+    private void showStats(Player player, String action) {
+        if (!player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't have permission to view region stats!");
+            return;
+        }
+
+        if ("reset".equalsIgnoreCase(action)) {
+            if (metrics != null) {
+                metrics.reset();
+            }
+            player.sendMessage(TextFormat.GREEN + "Region stats reset.");
+            return;
+        }
+
+        player.sendMessage(TextFormat.GOLD + "=== DeRegion Stats ===");
+        player.sendMessage(TextFormat.WHITE + "Regions: " + TextFormat.YELLOW + regionStore.size()
+                + TextFormat.WHITE + " loaded, " + TextFormat.YELLOW + regionStore.dormantSize() + TextFormat.WHITE + " in unloaded levels");
+        RegionIndex index = regionStore.getIndex();
+        if (index.getNestedCount() > 0 || index.getTangledCount() > 0) {
+            player.sendMessage(TextFormat.WHITE + "Overlaps: " + TextFormat.YELLOW + index.getNestedCount() + TextFormat.WHITE
+                    + " nested regions, " + TextFormat.YELLOW + index.getTangledCount() + TextFormat.WHITE + " partially overlapping");
+        }
+        if (permissionCache == null) {
+            player.sendMessage(TextFormat.WHITE + "Permission cache: " + TextFormat.GRAY + "disabled");
+        } else {
+            long hits = permissionCache.getHits();
+            long lookups = hits + permissionCache.getMisses();
+            String hitRate = lookups == 0 ? "-" : String.format("%.1f%%", hits * 100.0 / lookups);
+            player.sendMessage(TextFormat.WHITE + "Permission cache: " + TextFormat.YELLOW + hitRate + TextFormat.WHITE + " hit rate ("
+                    + hits + "/" + lookups + "), " + TextFormat.YELLOW + permissionCache.getEntryCount() + TextFormat.WHITE + " entries for "
+                    + TextFormat.YELLOW + permissionCache.getPlayerCount() + TextFormat.WHITE + " players ("
+                    + permissionCache.getSlots() + " slots each)");
+        }
+
+        player.sendMessage(TextFormat.WHITE + "Deny notices: " + TextFormat.YELLOW + notifier.getSent() + TextFormat.WHITE + " sent, "
+                + TextFormat.YELLOW + notifier.getCoalesced() + TextFormat.WHITE + " coalesced ("
+                + notifier.getDisplay().name().toLowerCase(Locale.ROOT) + ", every " + notifier.getInterval() + " ticks)");
+
+        if (metrics == null) {
+            player.sendMessage(TextFormat.WHITE + "Metrics: " + TextFormat.GRAY + "disabled (metrics.enabled in config.yml)");
+            return;
+        }
+        long seconds = (System.currentTimeMillis() - metrics.getStartedAt()) / 1000;
+        player.sendMessage(TextFormat.WHITE + "Metrics for the last " + TextFormat.YELLOW + seconds + "s" + TextFormat.WHITE + ":");
+        for (String line : metrics.report()) {
+            player.sendMessage(TextFormat.GRAY + "  " + line);
+        }
+    }
+
+    private void traceCommand(Player player, String action) {
+        if (!player.hasPermission("regionprotect.admin")) {
+            player.sendMessage(TextFormat.RED + "You don't have permission to record traces!");
+            return;
+        }
+
+        switch (action.toLowerCase()) {
+            case "start":
+                if (trace != null) {
+                    player.sendMessage(TextFormat.RED + "Trace " + trace.getFile().getName() + " is already recording!");
+                    return;
+                }
+                File traceFolder = new File(this.getDataFolder(), "traces");
+                traceFolder.mkdirs();
+                File file = new File(traceFolder, "trace-" + System.currentTimeMillis() + ".bin");
+                long maxBytes = Math.max(1, this.getConfig().getInt("trace.max-mb", 64)) * 1024L * 1024L;
+                trace = new TraceRecorder(file, regionWriter::execute, this.getLogger(), maxBytes);
+                player.sendMessage(TextFormat.GREEN + "Recording protection checks to traces/" + file.getName());
+                break;
+
+            case "stop":
+                if (trace == null) {
+                    player.sendMessage(TextFormat.RED + "No trace is recording!");
+                    return;
+                }
+                String name = trace.getFile().getName();
+                long events = trace.getEvents();
+                long bytes = trace.getBytes();
+                stopTrace();
+                player.sendMessage(TextFormat.GREEN + "Trace traces/" + name + " stopped: " + events + " events, "
+                        + RegionMetrics.formatBytes(bytes));
+                break;
+
+            default:
+                player.sendMessage(TextFormat.RED + "Usage: /region trace <start|stop>");
+                break;
+        }
+    }
+
+    private void stopTrace() {
+        trace.close();
+        this.getLogger().info("Trace " + trace.getFile().getName() + " closed: " + trace.getEvents() + " events");
+        trace = null;
+    }
+
+    // Последний отчёт метрик в metrics.txt; файл перезаписывается каждый интервал
+    private void dumpMetrics() {
+        StringBuilder dump = new StringBuilder();
+        dump.append("# DeRegion metrics at ").append(new Date()).append(", collected since ")
+                .append(new Date(metrics.getStartedAt())).append('\n');
+        dump.append("regions: ").append(regionStore.size()).append(" loaded, ")
+                .append(regionStore.dormantSize()).append(" in unloaded levels\n");
+        if (permissionCache != null) {
+            dump.append("permission cache: ").append(permissionCache.getHits()).append(" hits, ")
+                    .append(permissionCache.getMisses()).append(" misses\n");
+        }
+        for (String line : metrics.report()) {
+            dump.append(line).append('\n');
+        }
+        regionWriter.writeFile("metrics.txt", dump.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     private void showRegionInfo(Player player, String regionName) {
-        Region region = regions.get(regionName);
+        Region region = findRegion(player, regionName);
         if (region == null) {
-            player.sendMessage(TextFormat.RED + "Region '" + regionName + "' not found!");
             return;
         }
 
         player.sendMessage(TextFormat.GOLD + "=== Region Info: " + regionName + " ===");
-        player.sendMessage(TextFormat.WHITE + "Owner: " + TextFormat.YELLOW + region.getOwner());
-        player.sendMessage(TextFormat.WHITE + "Position 1: " + TextFormat.YELLOW + formatPosition(region.getPos1()));
-        player.sendMessage(TextFormat.WHITE + "Position 2: " + TextFormat.YELLOW + formatPosition(region.getPos2()));
+        player.sendMessage(TextFormat.WHITE + "Owner: " + TextFormat.YELLOW + region.getOwnerName());
+        player.sendMessage(TextFormat.WHITE + "Level: " + TextFormat.YELLOW + region.getLevelName());
+        player.sendMessage(TextFormat.WHITE + "Position 1: " + TextFormat.YELLOW + formatPosition(region.getMinX(), region.getMinY(), region.getMinZ()));
+        player.sendMessage(TextFormat.WHITE + "Position 2: " + TextFormat.YELLOW + formatPosition(region.getMaxX(), region.getMaxY(), region.getMaxZ()));
         
-        List<String> members = region.getMembers();
+        List<String> members = region.getMemberNames();
         if (members.isEmpty()) {
             player.sendMessage(TextFormat.WHITE + "Members: " + TextFormat.YELLOW + "None");
         } else {
             player.sendMessage(TextFormat.WHITE + "Members: " + TextFormat.YELLOW + String.join(", ", members));
         }
+        if (region.isEntryDenied()) {
+            player.sendMessage(TextFormat.WHITE + "Entry: " + TextFormat.RED + "owner and members only");
+        }
+        if (region.getPriority() != 0) {
+            player.sendMessage(TextFormat.WHITE + "Priority: " + TextFormat.YELLOW + region.getPriority());
+        }
+        if (region.getFlagsSet() != 0) {
+            List<String> flags = new ArrayList<>();
+            for (String flag : RegionFlags.NAMES) {
+                int bit = RegionFlags.byName(flag);
+                if ((region.getFlagsSet() & bit) != 0) {
+                    flags.add(((region.getFlagsAllowed() & bit) != 0 ? TextFormat.GREEN : TextFormat.RED) + flag);
+                }
+            }
+            player.sendMessage(TextFormat.WHITE + "Flags: " + String.join(TextFormat.WHITE + ", ", flags));
+        }
+        String snapshot = blockSnapshots.describe(region.getName());
+        if (snapshot != null) {
+            player.sendMessage(TextFormat.WHITE + "Snapshot: " + TextFormat.YELLOW + snapshot);
+        }
+        if (region.getGreeting() != null) {
+            player.sendMessage(TextFormat.WHITE + "Greeting: " + TextFormat.RESET + TextFormat.colorize('&', region.getGreeting()));
+        }
+        if (region.getFarewell() != null) {
+            player.sendMessage(TextFormat.WHITE + "Farewell: " + TextFormat.RESET + TextFormat.colorize('&', region.getFarewell()));
+        }
     }
 
+    // После попадания в RegionStore регион не меняется: его читают другие потоки через RegionQuery
     public static class Region {
-        private String name;
-        private String owner;
-        private Position pos1;
-        private Position pos2;
-        private Set<String> members;
+        public static final String OPTION_GREETING = "greeting";
+        public static final String OPTION_FAREWELL = "farewell";
+        public static final String OPTION_DENY_ENTRY = "deny-entry";
+        public static final String OPTION_PRIORITY = "priority";
+        // Флаги тоже настройки: /region set <регион> <флаг> allow|deny, пустое значение - как у родителя
+        public static final List<String> OPTIONS;
+
+        static {
+            List<String> options = new ArrayList<>(Arrays.asList(OPTION_GREETING, OPTION_FAREWELL, OPTION_DENY_ENTRY, OPTION_PRIORITY));
+            options.addAll(RegionFlags.NAMES);
+            OPTIONS = Collections.unmodifiableList(options);
+        }
+
+        private final String name;
+        private final int owner;
+        private final String levelName;
+        private final int levelId;
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+        private IntSet members;
+        // Настройки региона; меняются только у копии через setOption до записи в хранилище
+        private String greeting;
+        private String farewell;
+        private boolean denyEntry;
+        private int priority;
+        private int flagsSet;
+        private int flagsAllowed;
+        // Флаги региона без учёта соседей; считаются при первом обращении
+        private RegionFlags.Cell cell;
+
+        public Region(String name, int owner, Position pos1, Position pos2) {
+            this(name, owner, pos1.getLevel().getName(),
+                    pos1.getFloorX(), pos1.getFloorY(), pos1.getFloorZ(),
+                    pos2.getFloorX(), pos2.getFloorY(), pos2.getFloorZ());
+        }
 
-        public Region(String name, String owner, Position pos1, Position pos2) {
+        public Region(String name, int owner, String levelName, int x1, int y1, int z1, int x2, int y2, int z2) {
             this.name = name;
             this.owner = owner;
-            this.pos1 = pos1;
-            this.pos2 = pos2;
-            this.members = new HashSet<>();
+            this.levelName = levelName;
+            this.levelId = LevelIds.of(levelName);
+            this.minX = Math.min(x1, x2);
+            this.minY = Math.min(y1, y2);
+            this.minZ = Math.min(z1, z2);
+            this.maxX = Math.max(x1, x2);
+            this.maxY = Math.max(y1, y2);
+            this.maxZ = Math.max(z1, z2);
+            this.members = new IntSet();
         }
 
-        public boolean contains(Position pos) {
-            int minX = Math.min(pos1.getFloorX(), pos2.getFloorX());
-            int maxX = Math.max(pos1.getFloorX(), pos2.getFloorX());
-            int minY = Math.min(pos1.getFloorY(), pos2.getFloorY());
-            int maxY = Math.max(pos1.getFloorY(), pos2.getFloorY());
-            int minZ = Math.min(pos1.getFloorZ(), pos2.getFloorZ());
-            int maxZ = Math.max(pos1.getFloorZ(), pos2.getFloorZ());
+        public Region copy() {
+            Region copy = new Region(name, owner, levelName, minX, minY, minZ, maxX, maxY, maxZ);
+            copy.members = new IntSet(members);
+            copy.greeting = greeting;
+            copy.farewell = farewell;
+            copy.denyEntry = denyEntry;
+            copy.priority = priority;
+            copy.flagsSet = flagsSet;
+            copy.flagsAllowed = flagsAllowed;
+            return copy;
+        }
 
-            int x = pos.getFloorX();
-            int y = pos.getFloorY();
-            int z = pos.getFloorZ();
+        public boolean contains(int levelId, int x, int y, int z) {
+            return this.levelId == levelId
+                    && x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
 
-            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        public boolean contains(Position pos) {
+            return contains(LevelIds.of(pos.getLevel()), pos.getFloorX(), pos.getFloorY(), pos.getFloorZ());
         }
 
         public boolean overlapsWith(Position otherPos1, Position otherPos2) {
-            int thisMinX = Math.min(pos1.getFloorX(), pos2.getFloorX());
-            int thisMaxX = Math.max(pos1.getFloorX(), pos2.getFloorX());
-            int thisMinY = Math.min(pos1.getFloorY(), pos2.getFloorY());
-            int thisMaxY = Math.max(pos1.getFloorY(), pos2.getFloorY());
-            int thisMinZ = Math.min(pos1.getFloorZ(), pos2.getFloorZ());
-            int thisMaxZ = Math.max(pos1.getFloorZ(), pos2.getFloorZ());
+            if (LevelIds.of(otherPos1.getLevel()) != levelId) {
+                return false;
+            }
+            return overlapsWith(
+                    Math.min(otherPos1.getFloorX(), otherPos2.getFloorX()),
+                    Math.min(otherPos1.getFloorY(), otherPos2.getFloorY()),
+                    Math.min(otherPos1.getFloorZ(), otherPos2.getFloorZ()),
+                    Math.max(otherPos1.getFloorX(), otherPos2.getFloorX()),
+                    Math.max(otherPos1.getFloorY(), otherPos2.getFloorY()),
+                    Math.max(otherPos1.getFloorZ(), otherPos2.getFloorZ()));
+        }
+
+        public boolean encloses(int otherMinX, int otherMinY, int otherMinZ, int otherMaxX, int otherMaxY, int otherMaxZ) {
+            return minX <= otherMinX && maxX >= otherMaxX && minY <= otherMinY && maxY >= otherMaxY
+                    && minZ <= otherMinZ && maxZ >= otherMaxZ;
+        }
+
+        public boolean overlapsWith(int otherMinX, int otherMinY, int otherMinZ, int otherMaxX, int otherMaxY, int otherMaxZ) {
+            return (minX <= otherMaxX && maxX >= otherMinX) &&
+                   (minY <= otherMaxY && maxY >= otherMinY) &&
+                   (minZ <= otherMaxZ && maxZ >= otherMinZ);
+        }
+
+        public boolean canBuild(int playerId) {
+            return owner == playerId || members.contains(playerId);
+        }
 
-            int otherMinX = Math.min(otherPos1.getFloorX(), otherPos2.getFloorX());
-            int otherMaxX = Math.max(otherPos1.getFloorX(), otherPos2.getFloorX());
-            int otherMinY = Math.min(otherPos1.getFloorY(), otherPos2.getFloorY());
-            int otherMaxY = Math.max(otherPos1.getFloorY(), otherPos2.getFloorY());
-            int otherMinZ = Math.min(otherPos1.getFloorZ(), otherPos2.getFloorZ());
-            int otherMaxZ = Math.max(otherPos1.getFloorZ(), otherPos2.getFloorZ());
+        public boolean isOwner(int playerId) {
+            return owner == playerId;
+        }
 
-            return (thisMinX <= otherMaxX && thisMaxX >= otherMinX) &&
-                   (thisMinY <= otherMaxY && thisMaxY >= otherMinY) &&
-                   (thisMinZ <= otherMaxZ && thisMaxZ >= otherMinZ);
+        boolean addMember(int playerId) {
+            return members.add(playerId);
         }
 
-        public boolean canBuild(String playerName) {
-            return isOwner(playerName) || members.contains(playerName);
+        boolean removeMember(int playerId) {
+            return members.remove(playerId);
         }
 
-        public boolean isOwner(String playerName) {
-            return owner.equals(playerName);
+        public boolean isMember(int playerId) {
+            return members.contains(playerId);
         }
 
-        public void addMember(String playerName) {
-            members.add(playerName);
+        public int[] getMembers() {
+            return members.toArray();
         }
 
-        public void removeMember(String playerName) {
-            members.remove(playerName);
+        public List<String> getMemberNames() {
+            List<String> names = new ArrayList<>(members.size());
+            for (int i = 0; i < members.size(); i++) {
+                names.add(PlayerIds.nameOf(members.get(i)));
+            }
+            return names;
         }
 
-        public List<String> getMembers() {
-            return new ArrayList<>(members);
+        // Пустое значение сбрасывает настройку
+        void setOption(String key, String value) {
+            switch (key) {
+                case OPTION_GREETING:
+                    greeting = value.isEmpty() ? null : value;
+                    break;
+                case OPTION_FAREWELL:
+                    farewell = value.isEmpty() ? null : value;
+                    break;
+                case OPTION_DENY_ENTRY:
+                    denyEntry = parseBoolean(value);
+                    break;
+                case OPTION_PRIORITY:
+                    try {
+                        priority = value.isEmpty() ? 0 : Integer.parseInt(value.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Priority must be a number, got: " + value);
+                    }
+                    break;
+                default:
+                    int flag = RegionFlags.byName(key);
+                    if (flag == 0) {
+                        throw new IllegalArgumentException("Unknown region option: " + key);
+                    }
+                    if (value.isEmpty()) {
+                        flagsSet &= ~flag;
+                        flagsAllowed &= ~flag;
+                    } else {
+                        flagsSet |= flag;
+                        flagsAllowed = parseFlag(value) ? flagsAllowed | flag : flagsAllowed & ~flag;
+                    }
+                    break;
+            }
+            cell = null;
+        }
+
+        public String getOption(String key) {
+            switch (key) {
+                case OPTION_GREETING:
+                    return greeting != null ? greeting : "";
+                case OPTION_FAREWELL:
+                    return farewell != null ? farewell : "";
+                case OPTION_DENY_ENTRY:
+                    return String.valueOf(denyEntry);
+                case OPTION_PRIORITY:
+                    return String.valueOf(priority);
+                default:
+                    int flag = RegionFlags.byName(key);
+                    if (flag == 0) {
+                        throw new IllegalArgumentException("Unknown region option: " + key);
+                    }
+                    if ((flagsSet & flag) == 0) {
+                        return "";
+                    }
+                    return (flagsAllowed & flag) != 0 ? "allow" : "deny";
+            }
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        // Флаги, заданные в самом регионе
+        public int getFlagsSet() {
+            return flagsSet;
+        }
+
+        // Какие из заданных флагов разрешены
+        public int getFlagsAllowed() {
+            return flagsAllowed;
+        }
+
+        // Флаг внутри региона, если его не перекрывают другие регионы
+        public boolean allows(int flag) {
+            return getCell().allows(flag);
+        }
+
+        RegionFlags.Cell getCell() {
+            RegionFlags.Cell result = cell;
+            if (result == null) {
+                result = RegionFlags.resolve(new Region[]{this}, 1);
+                cell = result;
+            }
+            return result;
+        }
+
+        public String getGreeting() {
+            return greeting;
+        }
+
+        public String getFarewell() {
+            return farewell;
+        }
+
+        public boolean isEntryDenied() {
+            return denyEntry;
+        }
+
+        // Вход в регион с deny-entry разрешён только владельцу и участникам
+        public boolean canEnter(int playerId) {
+            return !denyEntry || canBuild(playerId);
         }
 
         public String getName() {
             return name;
         }
 
-        public String getOwner() {
+        public int getOwner() {
             return owner;
         }
 
-        public Position getPos1() {
-            return pos1;
+        public String getOwnerName() {
+            return PlayerIds.nameOf(owner);
         }
 
-        public Position getPos2() {
-            return pos2;
+        public String getLevelName() {
+            return levelName;
+        }
+
+        public int getLevelId() {
+            return levelId;
+        }
+
+        public int getMinX() {
+            return minX;
+        }
+
+        public int getMinY() {
+            return minY;
+        }
+
+        public int getMinZ() {
+            return minZ;
+        }
+
+        public int getMaxX() {
+            return maxX;
+        }
+
+        public int getMaxY() {
+            return maxY;
+        }
+
+        public int getMaxZ() {
+            return maxZ;
         }
 
         public Map<String, Object> toMap() {
             Map<String, Object> map = new HashMap<>();
             map.put("name", name);
-            map.put("owner", owner);
-            map.put("pos1", pos1ToString());
-            map.put("pos2", pos2ToString());
-            map.put("level", pos1.getLevel().getName());
-            map.put("members", new ArrayList<>(members));
+            map.put("owner", PlayerIds.uuidOf(owner).toString());
+            map.put("pos1", positionToString(minX, minY, minZ));
+            map.put("pos2", positionToString(maxX, maxY, maxZ));
+            map.put("level", levelName);
+            List<String> memberIds = new ArrayList<>(members.size());
+            for (int i = 0; i < members.size(); i++) {
+                memberIds.add(PlayerIds.uuidOf(members.get(i)).toString());
+            }
+            map.put("members", memberIds);
+            // Настройки по умолчанию не пишем, чтобы не раздувать regions.yml
+            if (greeting != null) {
+                map.put(OPTION_GREETING, greeting);
+            }
+            if (farewell != null) {
+                map.put(OPTION_FAREWELL, farewell);
+            }
+            if (denyEntry) {
+                map.put(OPTION_DENY_ENTRY, true);
+            }
+            if (priority != 0) {
+                map.put(OPTION_PRIORITY, priority);
+            }
+            if (flagsSet != 0) {
+                Map<String, Object> flags = new LinkedHashMap<>();
+                for (String flag : RegionFlags.NAMES) {
+                    String value = getOption(flag);
+                    if (!value.isEmpty()) {
+                        flags.put(flag, value);
+                    }
+                }
+                map.put("flags", flags);
+            }
             return map;
         }
 
         public static Region fromMap(Map<String, Object> map) {
             String name = (String) map.get("name");
-            String owner = (String) map.get("owner");
+            // Старые версии писали имена игроков вместо UUID
+            int owner = PlayerIds.parse((String) map.get("owner"));
             String levelName = (String) map.get("level");
-
-            cn.nukkit.level.Level level = cn.nukkit.Server.getInstance().getLevelByName(levelName);
-            if (level == null) {
-                throw new IllegalArgumentException("Level not found: " + levelName);
+            if (levelName == null) {
+                throw new IllegalArgumentException("Region has no level: " + name);
             }
 
-            Position pos1 = stringToPosition((String) map.get("pos1"), level);
-            Position pos2 = stringToPosition((String) map.get("pos2"), level);
+            int[] pos1 = stringToPosition((String) map.get("pos1"));
+            int[] pos2 = stringToPosition((String) map.get("pos2"));
 
-            Region region = new Region(name, owner, pos1, pos2);
+            Region region = new Region(name, owner, levelName, pos1[0], pos1[1], pos1[2], pos2[0], pos2[1], pos2[2]);
             
             // Загрузка списка участников
             if (map.containsKey("members")) {
                 List<String> memberList = (List<String>) map.get("members");
-                region.members.addAll(memberList);
+                for (String member : memberList) {
+                    region.members.add(PlayerIds.parse(member));
+                }
+            }
+            for (String option : OPTIONS) {
+                if (map.get(option) != null) {
+                    region.setOption(option, String.valueOf(map.get(option)));
+                }
+            }
+            if (map.get("flags") instanceof Map) {
+                for (Map.Entry<?, ?> flag : ((Map<?, ?>) map.get("flags")).entrySet()) {
+                    region.setOption(String.valueOf(flag.getKey()), String.valueOf(flag.getValue()));
+                }
             }
 
             return region;
         }
 
-        private String pos1ToString() {
-            return String.format("%d,%d,%d", pos1.getFloorX(), pos1.getFloorY(), pos1.getFloorZ());
+        private static boolean parseFlag(String value) {
+            switch (value.toLowerCase()) {
+                case "allow":
+                case "true":
+                case "yes":
+                    return true;
+                case "deny":
+                case "false":
+                case "no":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Expected allow or deny, got: " + value);
+            }
+        }
+
+        private static boolean parseBoolean(String value) {
+            switch (value.toLowerCase()) {
+                case "true":
+                case "yes":
+                case "on":
+                    return true;
+                case "":
+                case "false":
+                case "no":
+                case "off":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Expected true or false, got: " + value);
+            }
         }
 
-        private String pos2ToString() {
-            return String.format("%d,%d,%d", pos2.getFloorX(), pos2.getFloorY(), pos2.getFloorZ());
+        private static String positionToString(int x, int y, int z) {
+            return x + "," + y + "," + z;
         }
 
-        private static Position stringToPosition(String str, cn.nukkit.level.Level level) {
+        private static int[] stringToPosition(String str) {
             String[] parts = str.split(",");
-            int x = Integer.parseInt(parts[0]);
-            int y = Integer.parseInt(parts[1]);
-            int z = Integer.parseInt(parts[2]);
-            return new Position(x, y, z, level);
+            return new int[]{Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim())};
         }
     }
 
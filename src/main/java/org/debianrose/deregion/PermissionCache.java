@@ -0,0 +1,103 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Кэш решений о строительстве: для каждого игрока и чанка помним регионы, где ему строить нельзя.
+// Пустой массив - в этом чанке игроку можно всё. Записи сверяются с поколением хранилища,
+// которое растёт при любом изменении регионов или участников
+public class PermissionCache {
+
+    private final int slots;
+    private final Map<UUID, PlayerEntry> players = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    public PermissionCache(int slots) {
+        this.slots = Integer.highestOneBit(Math.max(1, slots));
+    }
+
+    public Region[] get(UUID playerId, int levelId, int chunkX, int chunkZ, int generation) {
+        PlayerEntry entry = players.get(playerId);
+        if (entry != null) {
+            long key = RegionIndex.chunkKey(chunkX, chunkZ);
+            int slot = slot(key, levelId);
+            if (entry.deniers[slot] != null && entry.keys[slot] == key && entry.levelIds[slot] == levelId
+                    && entry.generations[slot] == generation) {
+                hits++;
+                return entry.deniers[slot];
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    public void put(UUID playerId, int levelId, int chunkX, int chunkZ, int generation, Region[] deniers) {
+        PlayerEntry entry = players.computeIfAbsent(playerId, k -> new PlayerEntry(slots));
+        long key = RegionIndex.chunkKey(chunkX, chunkZ);
+        int slot = slot(key, levelId);
+        entry.keys[slot] = key;
+        entry.levelIds[slot] = levelId;
+        entry.generations[slot] = generation;
+        entry.deniers[slot] = deniers;
+    }
+
+    public void remove(UUID playerId) {
+        players.remove(playerId);
+    }
+
+    public void clear() {
+        players.clear();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    public int getEntryCount() {
+        int count = 0;
+        for (PlayerEntry entry : players.values()) {
+            for (Region[] deniers : entry.deniers) {
+                if (deniers != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    private int slot(long key, int levelId) {
+        long h = (key + levelId) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (slots - 1);
+    }
+
+    // Кэш прямого отображения фиксированного размера: новая запись вытесняет старую в том же слоте
+    private static class PlayerEntry {
+        private final long[] keys;
+        private final int[] levelIds;
+        private final int[] generations;
+        private final Region[][] deniers;
+
+        PlayerEntry(int slots) {
+            keys = new long[slots];
+            levelIds = new int[slots];
+            generations = new int[slots];
+            deniers = new Region[slots][];
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.Player;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+// Интернирование игроков в компактные int-идентификаторы. Игрок определяется по UUID,
+// имя хранится только для вывода и обновляется при входе. Идентификаторы живут только в памяти,
+// на диск пишутся UUID и последнее известное имя
+public final class PlayerIds {
+
+    public static final int NONE = -1;
+    // Владелец участков, которые ещё никто не занял
+    public static final UUID UNCLAIMED = new UUID(0L, 0L);
+
+    private static final Map<UUID, Integer> ids = new ConcurrentHashMap<>();
+    private static final List<UUID> uuids = new CopyOnWriteArrayList<>();
+    private static final List<String> names = new CopyOnWriteArrayList<>();
+    // Игроки, чьи имена пишутся в снимок: упомянутые в регионах или уже сохранённые раньше.
+    // Случайные посетители сервера в файл не попадают
+    private static final BitSet retained = new BitSet();
+
+    // Для старых данных, где вместо UUID записано имя
+    private static volatile Function<String, UUID> legacyResolver = PlayerIds::offlineUuid;
+    // До этого момента (мс с эпохи) новый UUID может забрать id старой записи с тем же именем
+    private static volatile long legacyClaimsUntil;
+    private static int migrated;
+
+    private PlayerIds() {
+    }
+
+    public static int of(UUID uuid) {
+        Integer id = ids.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PlayerIds.class) {
+            return ids.computeIfAbsent(uuid, k -> {
+                uuids.add(k);
+                names.add(null);
+                return uuids.size() - 1;
+            });
+        }
+    }
+
+    public static int of(Player player) {
+        UUID uuid = player.getUniqueId();
+        Integer id = ids.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        register(uuid, player.getName());
+        return ids.get(uuid);
+    }
+
+    // Запоминает имя игрока. Возвращает true, если что-то поменялось и это стоит сохранить.
+    // Игрок, который раньше был известен только по имени из старых данных, получает свой прежний id,
+    // но только пока открыто окно миграции: на online-сервере имя может занять кто угодно
+    public static synchronized boolean register(UUID uuid, String name) {
+        Integer id = ids.get(uuid);
+        boolean changed = false;
+        if (id == null) {
+            Integer legacyId = System.currentTimeMillis() < legacyClaimsUntil ? ids.get(offlineUuid(name)) : null;
+            if (legacyId != null) {
+                id = legacyId;
+                ids.remove(uuids.get(id));
+                ids.put(uuid, id);
+                uuids.set(id, uuid);
+            } else {
+                id = of(uuid);
+            }
+            changed = true;
+        }
+        if (!name.equals(names.get(id))) {
+            names.set(id, name);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // Значение из файла регионов: UUID или, в данных старых версий, имя игрока
+    public static int parse(String value) {
+        UUID uuid = parseUuid(value);
+        if (uuid != null) {
+            return of(uuid);
+        }
+        int id = of(legacyResolver.apply(value));
+        synchronized (PlayerIds.class) {
+            migrated++;
+            if (names.get(id) == null) {
+                names.set(id, value);
+            }
+        }
+        return id;
+    }
+
+    public static UUID uuidOf(int playerId) {
+        return uuids.get(playerId);
+    }
+
+    public static String nameOf(int playerId) {
+        String name = names.get(playerId);
+        if (name != null) {
+            return name;
+        }
+        UUID uuid = uuids.get(playerId);
+        return uuid.equals(UNCLAIMED) ? "unclaimed" : uuid.toString();
+    }
+
+    // Поиск по имени для команд; идёт перебором, на горячем пути не используется
+    public static int find(String name) {
+        UUID uuid = parseUuid(name);
+        if (uuid != null) {
+            Integer id = ids.get(uuid);
+            return id != null ? id : NONE;
+        }
+        for (int i = 0; i < names.size(); i++) {
+            if (name.equalsIgnoreCase(names.get(i))) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    // Возвращает true, если игрок только что стал сохраняемым и его имя ещё не записано на диск
+    public static synchronized boolean retain(int playerId) {
+        if (retained.get(playerId)) {
+            return false;
+        }
+        retained.set(playerId);
+        return true;
+    }
+
+    public static synchronized boolean isRetained(int playerId) {
+        return retained.get(playerId);
+    }
+
+    public static synchronized Map<UUID, String> getRetainedNames() {
+        Map<UUID, String> result = new TreeMap<>();
+        for (int i = retained.nextSetBit(0); i >= 0; i = retained.nextSetBit(i + 1)) {
+            result.put(uuids.get(i), nameOf(i));
+        }
+        return result;
+    }
+
+    public static void setLegacyResolver(Function<String, UUID> resolver) {
+        legacyResolver = resolver;
+    }
+
+    // 0 - старые записи по имени не достаются никому, их UUID определяется только при миграции
+    public static void setLegacyClaimsUntil(long epochMillis) {
+        legacyClaimsUntil = epochMillis;
+    }
+
+    // Сколько имён из старых данных переведено в UUID с прошлого вызова
+    public static synchronized int takeMigratedCount() {
+        int count = migrated;
+        migrated = 0;
+        return count;
+    }
+
+    public static int count() {
+        return uuids.size();
+    }
+
+    // Так сервер в offline-режиме получает UUID по имени
+    static UUID offlineUuid(String name) {
+        return UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static UUID parseUuid(String value) {
+        if (value.length() != 36 || value.charAt(8) != '-') {
+            return null;
+        }
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Шаблон сетки участков: columns x rows квадратов plotSize, разделённых дорогами roadWidth,
+// угол первого участка в (originX, originZ). Участок (c, r) называется <prefix>_<c>_<r>.
+// Сетка регулярная, поэтому какие участки задевает коробка, считается арифметикой, без перебора
+public class PlotGrid {
+
+    // Больше участков за одну команду не создаём: это уже не сетка, а опечатка в размерах
+    public static final int MAX_PLOTS = 100_000;
+
+    private final String prefix;
+    private final String levelName;
+    private final int originX;
+    private final int originZ;
+    private final int minY;
+    private final int maxY;
+    private final int columns;
+    private final int rows;
+    private final int plotSize;
+    private final int roadWidth;
+    private final int owner;
+
+    public PlotGrid(String prefix, String levelName, int originX, int originZ, int minY, int maxY,
+                    int columns, int rows, int plotSize, int roadWidth, int owner) {
+        if (columns < 1 || rows < 1 || plotSize < 1 || roadWidth < 0) {
+            throw new IllegalArgumentException("Grid size, plot size must be positive and road width not negative");
+        }
+        if ((long) columns * rows > MAX_PLOTS) {
+            throw new IllegalArgumentException("At most " + MAX_PLOTS + " plots per grid");
+        }
+        this.prefix = prefix;
+        this.levelName = levelName;
+        this.originX = originX;
+        this.originZ = originZ;
+        this.minY = Math.min(minY, maxY);
+        this.maxY = Math.max(minY, maxY);
+        this.columns = columns;
+        this.rows = rows;
+        this.plotSize = plotSize;
+        this.roadWidth = roadWidth;
+        this.owner = owner;
+    }
+
+    public int getPlotCount() {
+        return columns * rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public String getLevelName() {
+        return levelName;
+    }
+
+    public int getMinX() {
+        return originX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMinZ() {
+        return originZ;
+    }
+
+    public int getMaxX() {
+        return originX + columns * getPitch() - roadWidth - 1;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public int getMaxZ() {
+        return originZ + rows * getPitch() - roadWidth - 1;
+    }
+
+    public String nameOf(int column, int row) {
+        return prefix + "_" + column + "_" + row;
+    }
+
+    public Region create(int column, int row) {
+        int x = originX + column * getPitch();
+        int z = originZ + row * getPitch();
+        return new Region(nameOf(column, row), owner, levelName, x, minY, z, x + plotSize - 1, maxY, z + plotSize - 1);
+    }
+
+    // Все участки по строкам: индекс участка (c, r) в списке - r * columns + c
+    public List<Region> createAll() {
+        List<Region> plots = new ArrayList<>(getPlotCount());
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                plots.add(create(column, row));
+            }
+        }
+        return plots;
+    }
+
+    // Участки, которые задевает коробка, как {minColumn, minRow, maxColumn, maxRow}, или null,
+    // если она лежит на дорогах, выше или ниже участков или за пределами сетки
+    public int[] plotsIn(int boxMinX, int boxMinY, int boxMinZ, int boxMaxX, int boxMaxY, int boxMaxZ) {
+        if (boxMaxY < minY || boxMinY > maxY) {
+            return null;
+        }
+        int minColumn = Math.max(0, firstCell(boxMinX - originX));
+        int maxColumn = Math.min(columns - 1, Math.floorDiv(boxMaxX - originX, getPitch()));
+        int minRow = Math.max(0, firstCell(boxMinZ - originZ));
+        int maxRow = Math.min(rows - 1, Math.floorDiv(boxMaxZ - originZ, getPitch()));
+        if (minColumn > maxColumn || minRow > maxRow) {
+            return null;
+        }
+        return new int[]{minColumn, minRow, maxColumn, maxRow};
+    }
+
+    // Первый участок, правый край которого не левее offset
+    private int firstCell(int offset) {
+        return Math.floorDiv(offset - plotSize + getPitch(), getPitch());
+    }
+
+    private int getPitch() {
+        return plotSize + roadWidth;
+    }
+}
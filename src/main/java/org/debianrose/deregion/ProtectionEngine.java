@@ -0,0 +1,109 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.List;
+import java.util.UUID;
+
+// Решения о защите без привязки к событиям Nukkit: ими пользуются и обработчики Main,
+// и TraceReplay, так что проигрывание трассы проверяет тот же код, что работает на сервере
+public class ProtectionEngine {
+
+    private static final Region[] EMPTY = new Region[0];
+
+    private final RegionStore store;
+    private final PermissionCache cache;
+    private final RegionMetrics metrics;
+
+    // cache и metrics могут быть null - тогда кэш и метрики выключены
+    public ProtectionEngine(RegionStore store, PermissionCache cache, RegionMetrics metrics) {
+        this.store = store;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    public boolean canBuild(UUID playerUuid, int levelId, int x, int y, int z) {
+        int chunkX = x >> 4;
+        int chunkZ = z >> 4;
+        // Где регионы вложены друг в друга, решение уже посчитано в сетке флагов чанка.
+        // Таких чанков мало, остальные проверки обходятся одним битом и кэшем
+        RegionIndex index = store.getIndex();
+        if (index.mayHaveOverlaps(levelId, chunkX, chunkZ)) {
+            RegionFlags.Cell overlap = index.getOverlapCell(levelId, x, y, z);
+            if (overlap != null) {
+                return overlap.allows(RegionFlags.BUILD, PlayerIds.of(playerUuid));
+            }
+        }
+        Region[] deniers;
+        if (cache == null) {
+            deniers = getDeniers(PlayerIds.of(playerUuid), levelId, chunkX, chunkZ);
+        } else {
+            int generation = store.getGeneration();
+            deniers = cache.get(playerUuid, levelId, chunkX, chunkZ, generation);
+            if (deniers == null) {
+                deniers = getDeniers(PlayerIds.of(playerUuid), levelId, chunkX, chunkZ);
+                cache.put(playerUuid, levelId, chunkX, chunkZ, generation, deniers);
+            } else if (metrics != null) {
+                // Промах уже учтён в getDeniers; из кэша проверяются только запрещающие регионы
+                metrics.examine(deniers.length);
+            }
+        }
+        return !RegionIndex.containsAny(deniers, levelId, x, y, z);
+    }
+
+    private Region[] getDeniers(int playerId, int levelId, int chunkX, int chunkZ) {
+        RegionIndex index = store.getIndex();
+        if (metrics != null) {
+            metrics.examine(index.getRegionsInChunk(levelId, chunkX, chunkZ).length + index.getLargeRegions(levelId).length);
+        }
+        return index.getDeniers(playerId, levelId, chunkX, chunkZ);
+    }
+
+    // Регионы, которые задевает коробка взрыва; пустой массив - список блоков можно не трогать
+    public Region[] getExplosionCandidates(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        List<Region> candidates = store.getIndex().getRegionsIntersecting(levelId, minX, minY, minZ, maxX, maxY, maxZ);
+        if (metrics != null) {
+            metrics.examine(candidates.size());
+        }
+        return candidates.isEmpty() ? EMPTY : candidates.toArray(new Region[0]);
+    }
+
+    // Запрещён ли флаг в точке; candidates - все регионы, которые могут её содержать
+    public static boolean isDenied(Region[] candidates, int flag, int levelId, int x, int y, int z) {
+        return !RegionFlags.allows(candidates, levelId, x, y, z, flag);
+    }
+
+    // Флаг для всех, без учёта участников (огонь, pvp)
+    public boolean allows(int flag, int levelId, int x, int y, int z) {
+        RegionIndex index = store.getIndex();
+        return !index.mayHaveRegions(levelId, x >> 4, z >> 4) || index.getCell(levelId, x, y, z).allows(flag);
+    }
+
+    // Флаг для игрока: участникам верхних регионов точки разрешено всегда
+    public boolean allows(int flag, int playerId, int levelId, int x, int y, int z) {
+        RegionIndex index = store.getIndex();
+        return !index.mayHaveRegions(levelId, x >> 4, z >> 4) || index.getCell(levelId, x, y, z).allows(flag, playerId);
+    }
+
+    public boolean isPositionInAnyRegion(int levelId, int x, int y, int z) {
+        RegionIndex index = store.getIndex();
+        return index.mayHaveRegions(levelId, x >> 4, z >> 4) && index.isProtected(levelId, x, y, z);
+    }
+
+    // Вода, поршни и огонь: true, если в точке to флаг запрещён, а from лежит вне регионов, которые им управляют.
+    // Физика внутри одного региона и вне регионов разрешена; в чанке без регионов ответ даёт одна проверка битовой карты
+    public boolean crossesInto(int flag, int levelId, int fromX, int fromY, int fromZ, int toX, int toY, int toZ) {
+        RegionIndex index = store.getIndex();
+        if (!index.mayHaveRegions(levelId, toX >> 4, toZ >> 4)) {
+            return false;
+        }
+        // Почти всегда физика идёт внутри одних и тех же регионов: если все регионы точки to
+        // содержат и from, границу ничто не пересекает и ячейку можно не искать
+        if (!RegionIndex.entersAny(index.getRegionsInChunk(levelId, toX >> 4, toZ >> 4), levelId, fromX, fromY, fromZ, toX, toY, toZ)
+                && !RegionIndex.entersAny(index.getLargeRegions(levelId), levelId, fromX, fromY, fromZ, toX, toY, toZ)) {
+            return false;
+        }
+        RegionFlags.Cell cell = index.getCell(levelId, toX, toY, toZ);
+        return !cell.allows(flag) && !cell.covers(levelId, fromX, fromY, fromZ);
+    }
+}
@@ -0,0 +1,175 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Флаги регионов хранятся двумя битовыми масками: какие флаги заданы и какие из заданных разрешены.
+// Для вложенных регионов флаг берётся у региона с наибольшим приоритетом, который его задал;
+// при равных приоритетах запрет сильнее. Незаданный нигде флаг принимает значение по умолчанию
+public final class RegionFlags {
+
+    public static final int BUILD = 1;
+    public static final int EXPLOSIONS = 1 << 1;
+    public static final int PVP = 1 << 2;
+    public static final int INTERACT = 1 << 3;
+    public static final int FIRE = 1 << 4;
+    public static final int FLOW = 1 << 5;
+
+    public static final List<String> NAMES = Arrays.asList("build", "explosions", "pvp", "interact", "fire", "flow");
+    public static final int ALL = (1 << NAMES.size()) - 1;
+
+    // По умолчанию чужим нельзя строить и пользоваться блоками из interact.protected-blocks,
+    // взрывы, огонь и жидкости снаружи регион не трогают, а pvp разрешено
+    public static final int DEFAULTS = PVP;
+
+    private static final Region[] NO_REGIONS = new Region[0];
+
+    // Точка вне регионов: разрешено всё
+    public static final Cell NONE = new Cell(ALL, NO_REGIONS, 0);
+
+    private RegionFlags() {
+    }
+
+    // Бит флага по имени или 0, если такого флага нет
+    public static int byName(String name) {
+        int index = NAMES.indexOf(name);
+        return index >= 0 ? 1 << index : 0;
+    }
+
+    // Действующие флаги набора регионов, содержащих точку
+    static Cell resolve(Region[] regions, int count) {
+        if (count == 0) {
+            return NONE;
+        }
+        int topPriority = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            topPriority = Math.max(topPriority, regions[i].getPriority());
+        }
+        int topCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (regions[i].getPriority() == topPriority) {
+                topCount++;
+            }
+        }
+        Region[] top = new Region[topCount];
+        topCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (regions[i].getPriority() == topPriority) {
+                top[topCount++] = regions[i];
+            }
+        }
+
+        int allowed = 0;
+        for (int flag = 1; flag <= ALL; flag <<= 1) {
+            if (allows(regions, count, flag)) {
+                allowed |= flag;
+            }
+        }
+        return new Cell(allowed, top, count);
+    }
+
+    // Один флаг без выделения памяти: candidates могут содержать и регионы, не задевающие точку
+    static boolean allows(Region[] candidates, int levelId, int x, int y, int z, int flag) {
+        boolean found = false;
+        boolean allowed = (DEFAULTS & flag) != 0;
+        int bestPriority = Integer.MIN_VALUE;
+        boolean inside = false;
+        for (Region region : candidates) {
+            if (!region.contains(levelId, x, y, z)) {
+                continue;
+            }
+            inside = true;
+            if ((region.getFlagsSet() & flag) == 0) {
+                continue;
+            }
+            boolean regionAllows = (region.getFlagsAllowed() & flag) != 0;
+            int priority = region.getPriority();
+            if (!found || priority > bestPriority) {
+                found = true;
+                bestPriority = priority;
+                allowed = regionAllows;
+            } else if (priority == bestPriority) {
+                allowed &= regionAllows;
+            }
+        }
+        return !inside || allowed;
+    }
+
+    private static boolean allows(Region[] regions, int count, int flag) {
+        boolean found = false;
+        boolean allowed = (DEFAULTS & flag) != 0;
+        int bestPriority = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            Region region = regions[i];
+            if ((region.getFlagsSet() & flag) == 0) {
+                continue;
+            }
+            boolean regionAllows = (region.getFlagsAllowed() & flag) != 0;
+            if (!found || region.getPriority() > bestPriority) {
+                found = true;
+                bestPriority = region.getPriority();
+                allowed = regionAllows;
+            } else if (region.getPriority() == bestPriority) {
+                allowed &= regionAllows;
+            }
+        }
+        return allowed;
+    }
+
+    // Итог для точки: разрешённые флаги и регионы наибольшего приоритета,
+    // владельцы и участники которых строят и взаимодействуют независимо от флагов
+    public static final class Cell {
+        private final int allowed;
+        private final Region[] top;
+        private final int regionCount;
+
+        Cell(int allowed, Region[] top, int regionCount) {
+            this.allowed = allowed;
+            this.top = top;
+            this.regionCount = regionCount;
+        }
+
+        public boolean allows(int flag) {
+            return (allowed & flag) != 0;
+        }
+
+        public int getAllowed() {
+            return allowed;
+        }
+
+        public boolean isProtected() {
+            return top.length > 0;
+        }
+
+        // Сколько регионов покрывают точку
+        public int getRegionCount() {
+            return regionCount;
+        }
+
+        public boolean isMember(int playerId) {
+            for (Region region : top) {
+                if (region.canBuild(playerId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Строить и взаимодействовать можно участникам верхних регионов или всем, если флаг разрешён
+        public boolean allows(int flag, int playerId) {
+            return (allowed & flag) != 0 || isMember(playerId);
+        }
+
+        // Регионы, содержащие to, считают from своим: физика внутри региона не ограничивается
+        public boolean covers(int levelId, int x, int y, int z) {
+            for (Region region : top) {
+                if (!region.contains(levelId, x, y, z)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,1225 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.*;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+
+// Пространственный индекс регионов: для каждого мира - корзины по координатам чанка.
+// Опубликованный индекс не меняется, поэтому его можно читать из любого потока без блокировок.
+// Изменения делаются на копии: copy() делит с оригиналом все миры, а первое изменение мира
+// в копии копирует только его таблицу. Корзины Region[] и так копируются при каждом изменении
+public class RegionIndex implements RegionQuery {
+
+    // Регионы, занимающие больше чанков, хранятся отдельным списком, чтобы не раздувать таблицу
+    static final int LARGE_REGION_CHUNKS = 1024;
+
+    private static final Region[] EMPTY = new Region[0];
+    // Сколько положений коробки проверяет поиск свободного места, прежде чем сдаться
+    private static final int FREE_SPACE_CHECKS = 256;
+    // Метка региона, который частично пересекается с другими: его флаги считаются на лету
+    private static final RegionFlags.Cell TANGLED = new RegionFlags.Cell(0, EMPTY, 0);
+    // Предел отрезков, которые хранит один Tangle; за ним флаги точки считаются на лету
+    private static final int TANGLE_SAMPLES = 1 << 18;
+
+    private LevelIndex[] levels = new LevelIndex[0];
+    // Миры, которые принадлежат только этой копии и которые можно менять на месте
+    private boolean[] owned = new boolean[0];
+    private int count;
+    private long version;
+
+    public RegionIndex copy() {
+        RegionIndex copy = new RegionIndex();
+        copy.levels = levels.clone();
+        copy.owned = new boolean[levels.length];
+        copy.count = count;
+        copy.version = version + 1;
+        return copy;
+    }
+
+    void add(Region region) {
+        mutableLevel(region.getLevelId()).add(region);
+        count++;
+    }
+
+    void remove(Region region) {
+        int levelId = region.getLevelId();
+        if (level(levelId) == null) {
+            return;
+        }
+        LevelIndex index = mutableLevel(levelId);
+        index.remove(region);
+        count--;
+        if (index.size == 0) {
+            levels[levelId] = null;
+        }
+    }
+
+    void clear() {
+        levels = new LevelIndex[0];
+        owned = new boolean[0];
+        count = 0;
+    }
+
+    // Перед публикацией пересобирает битовые карты и цепочки флагов изменённых миров
+    void seal() {
+        for (int levelId = 0; levelId < levels.length; levelId++) {
+            if (owned[levelId] && levels[levelId] != null) {
+                levels[levelId].buildPresence();
+                levels[levelId].buildNested();
+            }
+        }
+    }
+
+    private LevelIndex mutableLevel(int levelId) {
+        if (levelId >= levels.length) {
+            levels = Arrays.copyOf(levels, levelId + 1);
+            owned = Arrays.copyOf(owned, levelId + 1);
+        }
+        if (levels[levelId] == null) {
+            levels[levelId] = new LevelIndex();
+            owned[levelId] = true;
+        } else if (!owned[levelId]) {
+            levels[levelId] = levels[levelId].copy();
+            owned[levelId] = true;
+        }
+        return levels[levelId];
+    }
+
+    @Override
+    public List<Region> getRegionsAt(String levelName, int x, int y, int z) {
+        int levelId = LevelIds.find(levelName);
+        if (levelId < 0) {
+            return Collections.emptyList();
+        }
+        List<Region> result = new ArrayList<>(2);
+        for (Region region : getRegionsInChunk(levelId, x >> 4, z >> 4)) {
+            if (region.contains(levelId, x, y, z)) {
+                result.add(region);
+            }
+        }
+        for (Region region : getLargeRegions(levelId)) {
+            if (region.contains(levelId, x, y, z)) {
+                result.add(region);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isProtected(String levelName, int x, int y, int z) {
+        int levelId = LevelIds.find(levelName);
+        return levelId >= 0 && isProtected(levelId, x, y, z);
+    }
+
+    @Override
+    public int getFlagsAt(String levelName, int x, int y, int z) {
+        int levelId = LevelIds.find(levelName);
+        return levelId >= 0 ? getCell(levelId, x, y, z).getAllowed() : RegionFlags.ALL;
+    }
+
+    @Override
+    public List<Region> getRegionsIntersecting(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int levelId = LevelIds.find(levelName);
+        if (levelId < 0) {
+            return Collections.emptyList();
+        }
+        return getRegionsIntersecting(levelId, Math.min(minX, maxX), Math.min(minY, maxY), Math.min(minZ, maxZ),
+                Math.max(minX, maxX), Math.max(minY, maxY), Math.max(minZ, maxZ));
+    }
+
+    @Override
+    public List<Overlap> getOverlaps(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int levelId = LevelIds.find(levelName);
+        if (levelId < 0) {
+            return Collections.emptyList();
+        }
+        return getOverlaps(levelId, Math.min(minX, maxX), Math.min(minY, maxY), Math.min(minZ, maxZ),
+                Math.max(minX, maxX), Math.max(minY, maxY), Math.max(minZ, maxZ));
+    }
+
+    @Override
+    public Region getNearestRegion(String levelName, int x, int y, int z, int maxDistance) {
+        int levelId = LevelIds.find(levelName);
+        return levelId >= 0 ? getNearestRegion(levelId, x, y, z, maxDistance) : null;
+    }
+
+    @Override
+    public int[] findFreeSpace(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int maxDistance) {
+        int levelId = LevelIds.find(levelName);
+        if (levelId < 0) {
+            return new int[]{minX, minY, minZ, maxX, maxY, maxZ};
+        }
+        return findFreeSpace(levelId, Math.min(minX, maxX), Math.min(minY, maxY), Math.min(minZ, maxZ),
+                Math.max(minX, maxX), Math.max(minY, maxY), Math.max(minZ, maxZ), maxDistance);
+    }
+
+    @Override
+    public boolean[] areProtected(String levelName, int[] xs, int[] ys, int[] zs) {
+        if (xs.length != ys.length || xs.length != zs.length) {
+            throw new IllegalArgumentException("Coordinate arrays differ in length");
+        }
+        boolean[] result = new boolean[xs.length];
+        int levelId = LevelIds.find(levelName);
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return result;
+        }
+        // Соседние точки обычно в одном чанке - корзину ищем заново только при смене чанка
+        long lastKey = 0;
+        Region[] bucket = null;
+        for (int i = 0; i < xs.length; i++) {
+            long key = chunkKey(xs[i] >> 4, zs[i] >> 4);
+            if (bucket == null || key != lastKey) {
+                bucket = index.chunks.get(key);
+                if (bucket == null) {
+                    bucket = EMPTY;
+                }
+                lastKey = key;
+            }
+            result[i] = containsAny(bucket, levelId, xs[i], ys[i], zs[i])
+                    || containsAny(index.large, levelId, xs[i], ys[i], zs[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public int getRegionCount() {
+        return count;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public RegionQuery snapshot() {
+        return this;
+    }
+
+    public boolean isProtected(int levelId, int x, int y, int z) {
+        return containsAny(getRegionsInChunk(levelId, x >> 4, z >> 4), levelId, x, y, z)
+                || containsAny(getLargeRegions(levelId), levelId, x, y, z);
+    }
+
+    // Быстрый ответ для частых физических событий: false - в чанке точно нет регионов.
+    // true возможен и для пустого чанка (коллизия в битовой карте), тогда нужна полная проверка
+    public boolean mayHaveRegions(int levelId, int chunkX, int chunkZ) {
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return false;
+        }
+        int bit = ChunkTable.mix(chunkKey(chunkX, chunkZ)) & index.presenceMask;
+        if ((index.presence[bit >>> 6] & (1L << bit)) != 0) {
+            return true;
+        }
+        int[] bounds = index.largeChunks;
+        for (int i = 0; i < bounds.length; i += 4) {
+            if (chunkX >= bounds[i] && chunkX <= bounds[i + 2] && chunkZ >= bounds[i + 1] && chunkZ <= bounds[i + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Действующие флаги в точке: у самого вложенного региона точки флаги всей его цепочки
+    // посчитаны заранее, на лету считаются только частичные пересечения
+    public RegionFlags.Cell getCell(int levelId, int x, int y, int z) {
+        LevelIndex index = level(levelId);
+        return index != null ? index.cellAt(levelId, x, y, z, false) : RegionFlags.NONE;
+    }
+
+    // Быстрый ответ для проверок прав: false - в чанке точно нет точек, покрытых несколькими регионами
+    boolean mayHaveOverlaps(int levelId, int chunkX, int chunkZ) {
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return false;
+        }
+        int bit = ChunkTable.mix(chunkKey(chunkX, chunkZ)) & index.overlapMask;
+        if ((index.overlaps[bit >>> 6] & (1L << bit)) != 0) {
+            return true;
+        }
+        int[] bounds = index.largeOverlapChunks;
+        for (int i = 0; i < bounds.length; i += 4) {
+            if (chunkX >= bounds[i] && chunkX <= bounds[i + 2] && chunkZ >= bounds[i + 1] && chunkZ <= bounds[i + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Флаги точки, которую покрывают несколько регионов, или null, если регион в точке не больше одного
+    RegionFlags.Cell getOverlapCell(int levelId, int x, int y, int z) {
+        LevelIndex index = level(levelId);
+        return index != null ? index.cellAt(levelId, x, y, z, true) : null;
+    }
+
+    // Регионы внутри других регионов и регионы с частичными пересечениями
+    public int getNestedCount() {
+        int total = 0;
+        for (LevelIndex index : levels) {
+            if (index != null) {
+                total += index.nested.size() - index.tangled;
+            }
+        }
+        return total;
+    }
+
+    public int getTangledCount() {
+        int total = 0;
+        for (LevelIndex index : levels) {
+            if (index != null) {
+                total += index.tangled;
+            }
+        }
+        return total;
+    }
+
+    public Region[] getRegionsInChunk(int levelId, int chunkX, int chunkZ) {
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return EMPTY;
+        }
+        Region[] bucket = index.chunks.get(chunkKey(chunkX, chunkZ));
+        return bucket != null ? bucket : EMPTY;
+    }
+
+    public Region[] getLargeRegions(int levelId) {
+        LevelIndex index = level(levelId);
+        return index != null ? index.large : EMPTY;
+    }
+
+    public boolean overlapsAny(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return visitIntersecting(levelId, minX, minY, minZ, maxX, maxY, maxZ, region -> true);
+    }
+
+    public List<Region> getRegionsIntersecting(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        Set<Region> result = new LinkedHashSet<>();
+        visitIntersecting(levelId, minX, minY, minZ, maxX, maxY, maxZ, region -> {
+            result.add(region);
+            return false;
+        });
+        return Collections.unmodifiableList(new ArrayList<>(result));
+    }
+
+    public List<Overlap> getOverlaps(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        List<Region> regions = getRegionsIntersecting(levelId, minX, minY, minZ, maxX, maxY, maxZ);
+        List<Overlap> overlaps = new ArrayList<>(regions.size());
+        for (Region region : regions) {
+            long volume = (long) (Math.min(maxX, region.getMaxX()) - Math.max(minX, region.getMinX()) + 1)
+                    * (Math.min(maxY, region.getMaxY()) - Math.max(minY, region.getMinY()) + 1)
+                    * (Math.min(maxZ, region.getMaxZ()) - Math.max(minZ, region.getMinZ()) + 1);
+            overlaps.add(new Overlap(region, volume));
+        }
+        overlaps.sort((a, b) -> Long.compare(b.getVolume(), a.getVolume()));
+        return overlaps;
+    }
+
+    // Чанки обходятся кольцами от точки и обход останавливается, как только все непросмотренные
+    // чанки дальше уже найденного региона: цена зависит от расстояния до соседей, а не от числа регионов
+    public Region getNearestRegion(int levelId, int x, int y, int z, int maxDistance) {
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return null;
+        }
+        long limit = (long) maxDistance * maxDistance;
+        Region best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Region region : index.large) {
+            long distance = distanceSquared(region, x, y, z);
+            if (distance <= limit && distance < bestDistance) {
+                best = region;
+                bestDistance = distance;
+            }
+        }
+
+        int centerX = x >> 4;
+        int centerZ = z >> 4;
+        int maxRing = (maxDistance >> 4) + 1;
+        // Если колец больше, чем занятых чанков, дешевле перебрать корзины
+        if ((2L * maxRing + 1) * (2L * maxRing + 1) > index.chunks.size()) {
+            for (Region[] bucket : index.chunks.values()) {
+                for (Region region : bucket) {
+                    long distance = distanceSquared(region, x, y, z);
+                    if (distance <= limit && distance < bestDistance) {
+                        best = region;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            return best;
+        }
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Чанки кольца ring отстоят от точки по горизонтали не меньше чем на (ring - 1) * 16 + 1 блоков
+            long nearest = ring == 0 ? 0 : (ring - 1) * 16L + 1;
+            if (nearest * nearest > Math.min(limit, bestDistance)) {
+                break;
+            }
+            for (int dx = -ring; dx <= ring; dx++) {
+                int step = dx == -ring || dx == ring ? 1 : Math.max(1, 2 * ring);
+                for (int dz = -ring; dz <= ring; dz += step) {
+                    Region[] bucket = index.chunks.get(chunkKey(centerX + dx, centerZ + dz));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (Region region : bucket) {
+                        long distance = distanceSquared(region, x, y, z);
+                        if (distance <= limit && distance < bestDistance) {
+                            best = region;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Коробка сдвигается по x и z за края регионов, которые ей мешают, а положения проверяются
+    // от ближних к дальним. Каждая проверка - запрос к индексу по чанкам коробки, их не больше FREE_SPACE_CHECKS
+    public int[] findFreeSpace(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int maxDistance) {
+        int width = maxX - minX;
+        int depth = maxZ - minZ;
+        long limit = (long) maxDistance * maxDistance;
+        PriorityQueue<long[]> candidates = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        Set<Long> seen = new HashSet<>();
+        candidates.add(new long[]{0, minX, minZ});
+        seen.add(chunkKey(minX, minZ));
+        List<Region> blocking = new ArrayList<>();
+        for (int checks = 0; checks < FREE_SPACE_CHECKS && !candidates.isEmpty(); checks++) {
+            long[] candidate = candidates.poll();
+            int x = (int) candidate[1];
+            int z = (int) candidate[2];
+            blocking.clear();
+            visitIntersecting(levelId, x, minY, z, x + width, maxY, z + depth, region -> {
+                blocking.add(region);
+                return false;
+            });
+            if (blocking.isEmpty()) {
+                return new int[]{x, minY, z, x + width, maxY, z + depth};
+            }
+            for (Region region : blocking) {
+                offerCandidate(candidates, seen, limit, minX, minZ, region.getMaxX() + 1, z);
+                offerCandidate(candidates, seen, limit, minX, minZ, region.getMinX() - width - 1, z);
+                offerCandidate(candidates, seen, limit, minX, minZ, x, region.getMaxZ() + 1);
+                offerCandidate(candidates, seen, limit, minX, minZ, x, region.getMinZ() - depth - 1);
+            }
+        }
+        return null;
+    }
+
+    private static void offerCandidate(PriorityQueue<long[]> candidates, Set<Long> seen, long limit,
+                                       int originX, int originZ, int x, int z) {
+        long dx = x - originX;
+        long dz = z - originZ;
+        long distance = dx * dx + dz * dz;
+        if (distance <= limit && seen.add(chunkKey(x, z))) {
+            candidates.add(new long[]{distance, x, z});
+        }
+    }
+
+    static long distanceSquared(Region region, int x, int y, int z) {
+        long dx = Math.max(0, Math.max(region.getMinX() - x, x - region.getMaxX()));
+        long dy = Math.max(0, Math.max(region.getMinY() - y, y - region.getMaxY()));
+        long dz = Math.max(0, Math.max(region.getMinZ() - z, z - region.getMaxZ()));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // Обходит регионы, пересекающие коробку; visitor возвращает true, чтобы прервать обход
+    private boolean visitIntersecting(int levelId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                                      Predicate<Region> visitor) {
+        LevelIndex index = level(levelId);
+        if (index == null) {
+            return false;
+        }
+
+        if (visit(index.large, minX, minY, minZ, maxX, maxY, maxZ, visitor)) {
+            return true;
+        }
+
+        int minChunkX = minX >> 4;
+        int maxChunkX = maxX >> 4;
+        int minChunkZ = minZ >> 4;
+        int maxChunkZ = maxZ >> 4;
+        long span = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+
+        // Огромное выделение дешевле проверить перебором корзин, чем обходом его чанков
+        if (span > index.chunks.size()) {
+            for (Region[] bucket : index.chunks.values()) {
+                if (visit(bucket, minX, minY, minZ, maxX, maxY, maxZ, visitor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        for (int cx = minChunkX; cx <= maxChunkX; cx++) {
+            for (int cz = minChunkZ; cz <= maxChunkZ; cz++) {
+                Region[] bucket = index.chunks.get(chunkKey(cx, cz));
+                if (bucket != null && visit(bucket, minX, minY, minZ, maxX, maxY, maxZ, visitor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Регионы чанка, в которых игроку строить нельзя; обычно их ноль или один.
+    // Годится только для точек без пересечений, их проверяет getOverlapCell
+    Region[] getDeniers(int playerId, int levelId, int chunkX, int chunkZ) {
+        List<Region> deniers = null;
+        for (Region region : getRegionsInChunk(levelId, chunkX, chunkZ)) {
+            if (!region.canBuild(playerId) && !region.allows(RegionFlags.BUILD)) {
+                deniers = add(deniers, region);
+            }
+        }
+        int minX = chunkX << 4;
+        int minZ = chunkZ << 4;
+        for (Region region : getLargeRegions(levelId)) {
+            if (region.overlapsWith(minX, Integer.MIN_VALUE, minZ, minX + 15, Integer.MAX_VALUE, minZ + 15)
+                    && !region.canBuild(playerId) && !region.allows(RegionFlags.BUILD)) {
+                deniers = add(deniers, region);
+            }
+        }
+        return deniers == null ? EMPTY : deniers.toArray(new Region[0]);
+    }
+
+    private static List<Region> add(List<Region> list, Region region) {
+        if (list == null) {
+            list = new ArrayList<>(2);
+        }
+        list.add(region);
+        return list;
+    }
+
+    static boolean containsAny(Region[] regions, int levelId, int x, int y, int z) {
+        for (Region region : regions) {
+            if (region.contains(levelId, x, y, z)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true, если какой-то из регионов содержит точку to, но не from
+    static boolean entersAny(Region[] regions, int levelId, int fromX, int fromY, int fromZ, int toX, int toY, int toZ) {
+        for (Region region : regions) {
+            if (region.contains(levelId, toX, toY, toZ) && !region.contains(levelId, fromX, fromY, fromZ)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private LevelIndex level(int levelId) {
+        return levelId >= 0 && levelId < levels.length ? levels[levelId] : null;
+    }
+
+    private static boolean visit(Region[] bucket, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                                 Predicate<Region> visitor) {
+        for (Region region : bucket) {
+            if (region.overlapsWith(minX, minY, minZ, maxX, maxY, maxZ) && visitor.test(region)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    static boolean isLarge(Region region) {
+        long width = (region.getMaxX() >> 4) - (region.getMinX() >> 4) + 1;
+        long depth = (region.getMaxZ() >> 4) - (region.getMinZ() >> 4) + 1;
+        return width * depth > LARGE_REGION_CHUNKS;
+    }
+
+    static boolean encloses(Region outer, Region inner) {
+        return outer.encloses(inner.getMinX(), inner.getMinY(), inner.getMinZ(), inner.getMaxX(), inner.getMaxY(), inner.getMaxZ());
+    }
+
+    // Самый вложенный из регионов, содержащих точку. Среди частично пересекающихся выбирается любой
+    private static Region innermost(Region[] regions, int levelId, int x, int y, int z) {
+        if (regions == null) {
+            return null;
+        }
+        Region inner = null;
+        for (Region region : regions) {
+            if (region.contains(levelId, x, y, z) && (inner == null || encloses(inner, region))) {
+                inner = region;
+            }
+        }
+        return inner;
+    }
+
+    // Учитывает other в цепочке region; true, если они пересекаются частично
+    private static boolean relate(Region region, Region other, List<Region> enclosing) {
+        if (other == region || !other.overlapsWith(region.getMinX(), region.getMinY(), region.getMinZ(),
+                region.getMaxX(), region.getMaxY(), region.getMaxZ())) {
+            return false;
+        }
+        if (encloses(other, region)) {
+            for (Region known : enclosing) {
+                if (known == other) {
+                    return false;
+                }
+            }
+            enclosing.add(other);
+            return false;
+        }
+        return !encloses(region, other);
+    }
+
+    private static Region[] append(Region[] array, Region region) {
+        Region[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = region;
+        return result;
+    }
+
+    private static Region[] without(Region[] array, Region region) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == region) {
+                if (array.length == 1) {
+                    return null;
+                }
+                Region[] result = new Region[array.length - 1];
+                System.arraycopy(array, 0, result, 0, i);
+                System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+                return result;
+            }
+        }
+        return array;
+    }
+
+    private static class LevelIndex {
+        private static final long[] NO_PRESENCE = new long[1];
+
+        private final ChunkTable<Region[]> chunks;
+        private Region[] large = EMPTY;
+        private int size;
+        // Флаги цепочки каждого вложенного региона: он сам и все регионы, которые его объемлют.
+        // Вложенные регионы не пересекаются частично, поэтому в любой их точке действуют ровно флаги цепочки
+        // самого вложенного. Для частично пересечённых регионов хранится TANGLED
+        private final IdentityHashMap<Region, RegionFlags.Cell> nested;
+        private int tangled;
+        private boolean largeNested;
+        // Чанки, регионы которых нужно пересчитать перед публикацией
+        private ChunkTable<Boolean> dirty = new ChunkTable<>();
+        private boolean largeDirty;
+        // Битовая карта занятых чанков по хэшу ключа: около 16 бит на чанк, поэтому она в разы
+        // меньше таблицы чанков и остаётся в кэше процессора. Большие регионы проверяются по границам в чанках
+        private long[] presence = NO_PRESENCE;
+        private int presenceMask;
+        private int[] largeChunks = new int[0];
+        // Такая же карта чанков под регионами из nested: только в них точку покрывают несколько регионов
+        private long[] overlaps = NO_PRESENCE;
+        private int overlapMask;
+        private int[] largeOverlapChunks = new int[0];
+        // Флаги частичных пересечений: по чанкам с частично пересечёнными регионами и отдельно
+        // для точек, где есть только большие регионы
+        private final ChunkTable<Tangle> tangles;
+        private Tangle largeTangle;
+
+        LevelIndex() {
+            chunks = new ChunkTable<>();
+            nested = new IdentityHashMap<>();
+            tangles = new ChunkTable<>();
+        }
+
+        private LevelIndex(LevelIndex other) {
+            chunks = other.chunks.copy();
+            large = other.large;
+            size = other.size;
+            nested = new IdentityHashMap<>(other.nested);
+            tangled = other.tangled;
+            largeNested = other.largeNested;
+            presence = other.presence;
+            presenceMask = other.presenceMask;
+            largeChunks = other.largeChunks;
+            overlaps = other.overlaps;
+            overlapMask = other.overlapMask;
+            largeOverlapChunks = other.largeOverlapChunks;
+            tangles = other.tangles.copy();
+            largeTangle = other.largeTangle;
+        }
+
+        // Большой регион меняет цепочки во всех занятых чанках под собой
+        private void markLargeDirty(Region region) {
+            largeDirty = true;
+            int minChunkX = region.getMinX() >> 4;
+            int maxChunkX = region.getMaxX() >> 4;
+            int minChunkZ = region.getMinZ() >> 4;
+            int maxChunkZ = region.getMaxZ() >> 4;
+            // Перебираем то, чего меньше: чанки под регионом или занятые чанки мира
+            long area = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+            if (area <= chunks.size()) {
+                for (int cx = minChunkX; cx <= maxChunkX; cx++) {
+                    for (int cz = minChunkZ; cz <= maxChunkZ; cz++) {
+                        long key = chunkKey(cx, cz);
+                        if (chunks.get(key) != null) {
+                            dirty.put(key, Boolean.TRUE);
+                        }
+                    }
+                }
+                return;
+            }
+            chunks.forEachKey(key -> {
+                int cx = (int) (key >> 32);
+                int cz = (int) key;
+                if (cx >= minChunkX && cx <= maxChunkX && cz >= minChunkZ && cz <= maxChunkZ) {
+                    dirty.put(key, Boolean.TRUE);
+                }
+            });
+        }
+
+        // Пересчитывает цепочки регионов из изменённых чанков: добавленный или удалённый регион
+        // может стать родителем или соседом только тех, кто лежит в его чанках
+        void buildNested() {
+            if (dirty.size() == 0 && !largeDirty) {
+                return;
+            }
+            Set<Region> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+            dirty.forEachKey(key -> {
+                Region[] bucket = chunks.get(key);
+                if (bucket != null) {
+                    Collections.addAll(affected, bucket);
+                }
+            });
+            if (largeDirty) {
+                Collections.addAll(affected, large);
+            }
+
+            List<Region> enclosing = new ArrayList<>();
+            for (Region region : affected) {
+                enclosing.clear();
+                boolean partial = false;
+                // Регион, объемлющий большой, сам большой, поэтому у больших цепочки только из больших
+                if (!isLarge(region)) {
+                    for (int cx = region.getMinX() >> 4; cx <= region.getMaxX() >> 4; cx++) {
+                        for (int cz = region.getMinZ() >> 4; cz <= region.getMaxZ() >> 4; cz++) {
+                            for (Region other : chunks.get(chunkKey(cx, cz))) {
+                                partial |= relate(region, other, enclosing);
+                            }
+                        }
+                    }
+                }
+                for (Region other : large) {
+                    partial |= relate(region, other, enclosing);
+                }
+
+                RegionFlags.Cell previous;
+                if (partial) {
+                    previous = nested.put(region, TANGLED);
+                } else if (enclosing.isEmpty()) {
+                    previous = nested.remove(region);
+                } else {
+                    enclosing.add(region);
+                    previous = nested.put(region, RegionFlags.resolve(enclosing.toArray(EMPTY), enclosing.size()));
+                }
+                if (previous == TANGLED) {
+                    tangled--;
+                }
+                if (partial) {
+                    tangled++;
+                }
+                // Регион мог стать частично пересечённым и в чанках, где ничего не менялось
+                if (partial != (previous == TANGLED) && !isLarge(region)) {
+                    for (int cx = region.getMinX() >> 4; cx <= region.getMaxX() >> 4; cx++) {
+                        for (int cz = region.getMinZ() >> 4; cz <= region.getMaxZ() >> 4; cz++) {
+                            dirty.put(chunkKey(cx, cz), Boolean.TRUE);
+                        }
+                    }
+                }
+            }
+            dirty.forEachKey(this::buildTangle);
+            dirty = new ChunkTable<>();
+
+            if (largeDirty) {
+                largeNested = false;
+                boolean largeTangled = false;
+                int minX = Integer.MAX_VALUE;
+                int minZ = Integer.MAX_VALUE;
+                int maxX = Integer.MIN_VALUE;
+                int maxZ = Integer.MIN_VALUE;
+                for (Region region : large) {
+                    largeNested |= nested.containsKey(region);
+                    largeTangled |= nested.get(region) == TANGLED;
+                    minX = Math.min(minX, region.getMinX());
+                    minZ = Math.min(minZ, region.getMinZ());
+                    maxX = Math.max(maxX, region.getMaxX());
+                    maxZ = Math.max(maxZ, region.getMaxZ());
+                }
+                largeTangle = largeTangled ? Tangle.build(large, minX, minZ, maxX, maxZ) : null;
+                largeDirty = false;
+            }
+            buildOverlaps();
+        }
+
+        private void buildTangle(long key) {
+            Region[] bucket = chunks.get(key);
+            boolean tangledHere = false;
+            if (bucket != null) {
+                for (Region region : bucket) {
+                    tangledHere |= nested.get(region) == TANGLED;
+                }
+            }
+            Tangle tangle = null;
+            if (tangledHere) {
+                int minX = (int) (key >> 32) << 4;
+                int minZ = (int) key << 4;
+                Region[] candidates = bucket;
+                for (Region region : large) {
+                    if (region.overlapsWith(minX, Integer.MIN_VALUE, minZ, minX + 15, Integer.MAX_VALUE, minZ + 15)) {
+                        candidates = append(candidates, region);
+                    }
+                }
+                tangle = Tangle.build(candidates, minX, minZ, minX + 15, minZ + 15);
+            }
+            if (tangle != null) {
+                tangles.put(key, tangle);
+            } else if (tangles.get(key) != null) {
+                tangles.remove(key);
+            }
+        }
+
+        private void buildOverlaps() {
+            long area = 0;
+            int largeCount = 0;
+            for (Region region : nested.keySet()) {
+                if (isLarge(region)) {
+                    largeCount++;
+                } else {
+                    area += (long) ((region.getMaxX() >> 4) - (region.getMinX() >> 4) + 1)
+                            * ((region.getMaxZ() >> 4) - (region.getMinZ() >> 4) + 1);
+                }
+            }
+            if (area == 0) {
+                overlaps = NO_PRESENCE;
+                overlapMask = 0;
+            } else {
+                int bits = Math.max(64, Integer.highestOneBit((int) Math.min(area, 1 << 24) * 16 - 1) << 1);
+                long[] map = new long[bits >>> 6];
+                int mask = bits - 1;
+                for (Region region : nested.keySet()) {
+                    if (isLarge(region)) {
+                        continue;
+                    }
+                    for (int cx = region.getMinX() >> 4; cx <= region.getMaxX() >> 4; cx++) {
+                        for (int cz = region.getMinZ() >> 4; cz <= region.getMaxZ() >> 4; cz++) {
+                            int bit = ChunkTable.mix(chunkKey(cx, cz)) & mask;
+                            map[bit >>> 6] |= 1L << bit;
+                        }
+                    }
+                }
+                overlaps = map;
+                overlapMask = mask;
+            }
+            int[] bounds = new int[largeCount * 4];
+            int i = 0;
+            for (Region region : nested.keySet()) {
+                if (isLarge(region)) {
+                    bounds[i++] = region.getMinX() >> 4;
+                    bounds[i++] = region.getMinZ() >> 4;
+                    bounds[i++] = region.getMaxX() >> 4;
+                    bounds[i++] = region.getMaxZ() >> 4;
+                }
+            }
+            largeOverlapChunks = bounds;
+        }
+
+        RegionFlags.Cell cellAt(int levelId, int x, int y, int z, boolean overlapOnly) {
+            long key = chunkKey(x >> 4, z >> 4);
+            // В чанке с частичными пересечениями таблица отвечает за любую точку: там, где регионы
+            // только вложены, набор регионов точки и есть цепочка самого вложенного
+            if (tangled > 0) {
+                Tangle tangle = tangles.get(key);
+                if (tangle != null) {
+                    return tangled(tangle.cellAt(x, y, z), overlapOnly);
+                }
+            }
+            Region inner = innermost(chunks.get(key), levelId, x, y, z);
+            if (inner == null) {
+                // Несколько больших регионов в точке бывают, только если какие-то из них пересекаются
+                if (overlapOnly && !largeNested) {
+                    return null;
+                }
+                if (largeTangle != null) {
+                    return tangled(largeTangle.cellAt(x, y, z), overlapOnly);
+                }
+                inner = innermost(large, levelId, x, y, z);
+                if (inner == null) {
+                    return overlapOnly ? null : RegionFlags.NONE;
+                }
+            }
+            RegionFlags.Cell chain = nested.get(inner);
+            if (chain == null) {
+                return overlapOnly ? null : inner.getCell();
+            }
+            if (chain != TANGLED) {
+                return chain;
+            }
+
+            // Таблицу не построили: в чанке слишком много регионов или точек разбиения
+            Region[] bucket = chunks.get(key);
+            Region[] containing = new Region[(bucket != null ? bucket.length : 0) + large.length];
+            int count = 0;
+            if (bucket != null) {
+                for (Region region : bucket) {
+                    if (region.contains(levelId, x, y, z)) {
+                        containing[count++] = region;
+                    }
+                }
+            }
+            for (Region region : large) {
+                if (region.contains(levelId, x, y, z)) {
+                    containing[count++] = region;
+                }
+            }
+            return overlapOnly && count < 2 ? null : RegionFlags.resolve(containing, count);
+        }
+
+        private static RegionFlags.Cell tangled(RegionFlags.Cell cell, boolean overlapOnly) {
+            if (cell == null) {
+                return overlapOnly ? null : RegionFlags.NONE;
+            }
+            return overlapOnly && cell.getRegionCount() < 2 ? null : cell;
+        }
+
+        void buildPresence() {
+            int bits = Math.max(64, Integer.highestOneBit(Math.max(1, chunks.size()) * 16 - 1) << 1);
+            long[] map = new long[bits >>> 6];
+            int mask = bits - 1;
+            chunks.forEachKey(key -> {
+                int bit = ChunkTable.mix(key) & mask;
+                map[bit >>> 6] |= 1L << bit;
+            });
+            int[] bounds = new int[large.length * 4];
+            for (int i = 0; i < large.length; i++) {
+                bounds[i * 4] = large[i].getMinX() >> 4;
+                bounds[i * 4 + 1] = large[i].getMinZ() >> 4;
+                bounds[i * 4 + 2] = large[i].getMaxX() >> 4;
+                bounds[i * 4 + 3] = large[i].getMaxZ() >> 4;
+            }
+            presence = map;
+            presenceMask = mask;
+            largeChunks = bounds;
+        }
+
+        LevelIndex copy() {
+            return new LevelIndex(this);
+        }
+
+        void add(Region region) {
+            size++;
+            if (isLarge(region)) {
+                large = append(large, region);
+                markLargeDirty(region);
+                return;
+            }
+            for (int cx = region.getMinX() >> 4; cx <= region.getMaxX() >> 4; cx++) {
+                for (int cz = region.getMinZ() >> 4; cz <= region.getMaxZ() >> 4; cz++) {
+                    long key = chunkKey(cx, cz);
+                    Region[] bucket = chunks.get(key);
+                    chunks.put(key, bucket == null ? new Region[]{region} : append(bucket, region));
+                    dirty.put(key, Boolean.TRUE);
+                }
+            }
+        }
+
+        private void forget(Region region) {
+            if (nested.remove(region) == TANGLED) {
+                tangled--;
+            }
+        }
+
+        void remove(Region region) {
+            size--;
+            forget(region);
+            if (isLarge(region)) {
+                Region[] result = without(large, region);
+                large = result != null ? result : EMPTY;
+                markLargeDirty(region);
+                return;
+            }
+            for (int cx = region.getMinX() >> 4; cx <= region.getMaxX() >> 4; cx++) {
+                for (int cz = region.getMinZ() >> 4; cz <= region.getMaxZ() >> 4; cz++) {
+                    long key = chunkKey(cx, cz);
+                    dirty.put(key, Boolean.TRUE);
+                    Region[] bucket = chunks.get(key);
+                    if (bucket == null) {
+                        continue;
+                    }
+                    Region[] result = without(bucket, region);
+                    if (result == null) {
+                        chunks.remove(key);
+                    } else {
+                        chunks.put(key, result);
+                    }
+                }
+            }
+        }
+    }
+
+    // Флаги частичных пересечений в прямоугольнике, посчитанные заранее. Границы регионов режут его
+    // на столбцы, в которых набор регионов по x и z не меняется, а столбец - на отрезки по y.
+    // Проверка точки - три двоичных поиска по коротким массивам, без выделения памяти
+    private static final class Tangle {
+        private static final Column NO_REGIONS = new Column(new int[0], new RegionFlags.Cell[0]);
+
+        private final int[] xs;
+        private final int[] zs;
+        private final Column[] columns;
+
+        private Tangle(int[] xs, int[] zs, Column[] columns) {
+            this.xs = xs;
+            this.zs = zs;
+            this.columns = columns;
+        }
+
+        // null, если точек разбиения больше TANGLE_SAMPLES
+        static Tangle build(Region[] regions, int minX, int minZ, int maxX, int maxZ) {
+            List<Region> inside = new ArrayList<>();
+            for (Region region : regions) {
+                if (region.overlapsWith(minX, Integer.MIN_VALUE, minZ, maxX, Integer.MAX_VALUE, maxZ)) {
+                    inside.add(region);
+                }
+            }
+            Region[] candidates = inside.toArray(EMPTY);
+            int[] xs = cuts(candidates, candidates.length, minX, maxX, 0);
+            int[] zs = cuts(candidates, candidates.length, minZ, maxZ, 2);
+            long samples = 0;
+            Column[] columns = new Column[xs.length * zs.length];
+            // Одинаковые наборы регионов встречаются во многих столбцах, ячейка на набор одна
+            Map<List<Region>, RegionFlags.Cell> known = new HashMap<>();
+            Region[] covering = new Region[candidates.length];
+            Region[] containing = new Region[candidates.length];
+            for (int i = 0; i < xs.length; i++) {
+                for (int j = 0; j < zs.length; j++) {
+                    int count = 0;
+                    for (Region region : candidates) {
+                        if (region.getMinX() <= xs[i] && region.getMaxX() >= xs[i]
+                                && region.getMinZ() <= zs[j] && region.getMaxZ() >= zs[j]) {
+                            covering[count++] = region;
+                        }
+                    }
+                    if (count == 0) {
+                        columns[i * zs.length + j] = NO_REGIONS;
+                        continue;
+                    }
+                    int[] ys = cuts(covering, count, Integer.MIN_VALUE, Integer.MAX_VALUE, 1);
+                    samples += ys.length;
+                    if (samples > TANGLE_SAMPLES) {
+                        return null;
+                    }
+                    RegionFlags.Cell[] cells = new RegionFlags.Cell[ys.length];
+                    for (int k = 0; k < ys.length; k++) {
+                        int found = 0;
+                        for (int n = 0; n < count; n++) {
+                            if (covering[n].getMinY() <= ys[k] && covering[n].getMaxY() >= ys[k]) {
+                                containing[found++] = covering[n];
+                            }
+                        }
+                        if (found > 0) {
+                            List<Region> set = Arrays.asList(Arrays.copyOf(containing, found));
+                            RegionFlags.Cell cell = known.get(set);
+                            if (cell == null) {
+                                cell = RegionFlags.resolve(containing, found);
+                                known.put(set, cell);
+                            }
+                            cells[k] = cell;
+                        }
+                    }
+                    columns[i * zs.length + j] = new Column(ys, cells);
+                }
+            }
+            return new Tangle(xs, zs, columns);
+        }
+
+        // Начала отрезков по оси axis (0 - x, 1 - y, 2 - z) внутри [min, max]. Если регион доходит
+        // до max, последний отрезок начинается за max и пуст: точки правее прямоугольника попадают в него
+        private static int[] cuts(Region[] regions, int count, int min, int max, int axis) {
+            int[] result = new int[count * 2 + 1];
+            int size = 0;
+            result[size++] = min;
+            for (int i = 0; i < count; i++) {
+                Region region = regions[i];
+                int low = axis == 0 ? region.getMinX() : axis == 1 ? region.getMinY() : region.getMinZ();
+                int high = axis == 0 ? region.getMaxX() : axis == 1 ? region.getMaxY() : region.getMaxZ();
+                if (low > min && low <= max) {
+                    result[size++] = low;
+                }
+                if (high >= min && high <= max && high < Integer.MAX_VALUE) {
+                    result[size++] = high + 1;
+                }
+            }
+            Arrays.sort(result, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || result[i] != result[unique - 1]) {
+                    result[unique++] = result[i];
+                }
+            }
+            return Arrays.copyOf(result, unique);
+        }
+
+        // Номер отрезка, в который попадает value, или -1 левее первого
+        private static int segment(int[] starts, int value) {
+            int slot = Arrays.binarySearch(starts, value);
+            return slot >= 0 ? slot : -slot - 2;
+        }
+
+        // null, если точка вне прямоугольника или ни в одном регионе
+        RegionFlags.Cell cellAt(int x, int y, int z) {
+            int i = segment(xs, x);
+            int j = segment(zs, z);
+            if (i < 0 || j < 0) {
+                return null;
+            }
+            Column column = columns[i * zs.length + j];
+            int k = segment(column.ys, y);
+            return k >= 0 ? column.cells[k] : null;
+        }
+    }
+
+    private static final class Column {
+        private final int[] ys;
+        private final RegionFlags.Cell[] cells;
+
+        private Column(int[] ys, RegionFlags.Cell[] cells) {
+            this.ys = ys;
+            this.cells = cells;
+        }
+    }
+
+    // Открытая адресация по long-ключу, чтобы поиск не упаковывал координаты в Long
+    static class ChunkTable<V> {
+        private static final long FREE = Long.MIN_VALUE;
+
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        ChunkTable() {
+            keys = new long[16];
+            values = new Object[16];
+            Arrays.fill(keys, FREE);
+        }
+
+        ChunkTable<V> copy() {
+            ChunkTable<V> copy = new ChunkTable<>();
+            copy.keys = keys.clone();
+            copy.values = values.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (true) {
+                long current = keys[slot];
+                if (current == key) {
+                    return (V) values[slot];
+                }
+                if (current == FREE) {
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void put(long key, V value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != FREE) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == FREE) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = FREE;
+            values[slot] = null;
+            size--;
+
+            // Сдвигаем следующие элементы цепочки, чтобы поиск не оборвался на дыре
+            int next = (slot + 1) & mask;
+            while (keys[next] != FREE) {
+                long movedKey = keys[next];
+                @SuppressWarnings("unchecked")
+                V movedValue = (V) values[next];
+                keys[next] = FREE;
+                values[next] = null;
+                size--;
+                put(movedKey, movedValue);
+                next = (next + 1) & mask;
+            }
+        }
+
+        void forEachKey(LongConsumer consumer) {
+            for (long key : keys) {
+                if (key != FREE) {
+                    consumer.accept(key);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<V> values() {
+            List<V> result = new ArrayList<>(size);
+            for (Object value : values) {
+                if (value != null) {
+                    result.add((V) value);
+                }
+            }
+            return result;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            Arrays.fill(keys, FREE);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) oldValues[i];
+                    put(oldKeys[i], value);
+                }
+            }
+        }
+
+        static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+// Журнал изменений регионов: записи дописываются в конец, снимок regions.yml периодически его поглощает.
+// Формат записи: [int длина][byte операция][UTF мир][данные][int crc32 операции и данных].
+// Игроки записываются по UUID; имена старых версий журнала переводятся через PlayerIds.parse
+public class RegionJournal {
+
+    static final byte OP_CREATE = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_ADD_MEMBER = 3;
+    static final byte OP_REMOVE_MEMBER = 4;
+    // Имя игрока: [long старшие][long младшие биты UUID][UTF имя], мир пустой
+    static final byte OP_PLAYER = 5;
+    // Настройка региона: [UTF регион][UTF ключ][UTF значение], пустое значение - сброс
+    static final byte OP_SET_OPTION = 6;
+
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+    // Запись, у которой длина в порядке, а crc32 не сходится
+    private static final byte[] CORRUPT = new byte[0];
+
+    public interface Handler {
+        void create(Region region);
+
+        void delete(String regionName);
+
+        void addMember(String regionName, int memberId);
+
+        void removeMember(String regionName, int memberId);
+
+        void player(UUID uuid, String name);
+
+        void setOption(String regionName, String key, String value);
+
+        // Запись номер index не удалось разобрать или применить; проигрывание идёт дальше
+        void skipped(int index, Exception error);
+    }
+
+    private final File file;
+    private FileChannel channel;
+
+    public RegionJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public static byte[] create(Region region) {
+        return encode(OP_CREATE, region.getLevelName(), out -> {
+            out.writeUTF(region.getName());
+            out.writeUTF(PlayerIds.uuidOf(region.getOwner()).toString());
+            out.writeInt(region.getMinX());
+            out.writeInt(region.getMinY());
+            out.writeInt(region.getMinZ());
+            out.writeInt(region.getMaxX());
+            out.writeInt(region.getMaxY());
+            out.writeInt(region.getMaxZ());
+            int[] members = region.getMembers();
+            out.writeInt(members.length);
+            for (int member : members) {
+                out.writeUTF(PlayerIds.uuidOf(member).toString());
+            }
+            // Настройки дописаны в конец записи: журналы старых версий заканчиваются на участниках
+            out.writeInt(Region.OPTIONS.size());
+            for (String option : Region.OPTIONS) {
+                out.writeUTF(option);
+                out.writeUTF(region.getOption(option));
+            }
+        });
+    }
+
+    public static byte[] delete(Region region) {
+        return encode(OP_DELETE, region.getLevelName(), out -> out.writeUTF(region.getName()));
+    }
+
+    public static byte[] addMember(Region region, int memberId) {
+        String regionName = region.getName();
+        String member = PlayerIds.uuidOf(memberId).toString();
+        return encode(OP_ADD_MEMBER, region.getLevelName(), out -> {
+            out.writeUTF(regionName);
+            out.writeUTF(member);
+        });
+    }
+
+    public static byte[] removeMember(Region region, int memberId) {
+        String regionName = region.getName();
+        String member = PlayerIds.uuidOf(memberId).toString();
+        return encode(OP_REMOVE_MEMBER, region.getLevelName(), out -> {
+            out.writeUTF(regionName);
+            out.writeUTF(member);
+        });
+    }
+
+    public static byte[] setOption(Region region, String key, String value) {
+        String regionName = region.getName();
+        return encode(OP_SET_OPTION, region.getLevelName(), out -> {
+            out.writeUTF(regionName);
+            out.writeUTF(key);
+            out.writeUTF(value);
+        });
+    }
+
+    public static byte[] player(int playerId) {
+        UUID uuid = PlayerIds.uuidOf(playerId);
+        String name = PlayerIds.nameOf(playerId);
+        return encode(OP_PLAYER, "", out -> {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeUTF(name);
+        });
+    }
+
+    // Проигрывает журнал поверх загруженного снимка. Возвращает число применённых записей;
+    // оборванный хвост (сбой посреди записи) молча отбрасывается. Запись с неизвестной операцией,
+    // неверными данными или несовпавшей crc32 пропускается: длина у каждой записи своя, следующие
+    // читаются как обычно. Неверная длина, за которой ещё есть данные, - IOException: где начинается
+    // следующая запись, уже не узнать
+    public int replay(Handler handler) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int applied = 0;
+        int index = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] body = readRecord(in);
+                if (body == null) {
+                    break;
+                }
+                if (body == CORRUPT) {
+                    handler.skipped(index++, new IOException("checksum mismatch"));
+                    continue;
+                }
+                try {
+                    apply(body, handler);
+                    applied++;
+                } catch (IOException | RuntimeException e) {
+                    handler.skipped(index, e);
+                }
+                index++;
+            }
+        }
+        return applied;
+    }
+
+    // Миры, которых касаются записи журнала: их регионы нужно развернуть перед проигрыванием
+    public Set<String> readLevels() throws IOException {
+        Set<String> levels = new HashSet<>();
+        if (!file.exists()) {
+            return levels;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] body = readRecord(in);
+                if (body == null) {
+                    break;
+                }
+                if (body == CORRUPT) {
+                    continue;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                record.readByte();
+                String levelName = record.readUTF();
+                if (!levelName.isEmpty()) {
+                    levels.add(levelName);
+                }
+            }
+        }
+        return levels;
+    }
+
+    public boolean isEmpty() {
+        return !file.exists() || file.length() == 0;
+    }
+
+    // Дальше вызывается только из потока RegionWriter
+    void append(byte[] record) throws IOException {
+        FileChannel out = channel();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    void truncate() throws IOException {
+        FileChannel out = channel();
+        out.truncate(0);
+        out.force(true);
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    // Тело следующей записи, CORRUPT при несовпадении crc32 или null в конце журнала.
+    // Обрыв посреди записи - это сбой при дописывании, им журнал и заканчивается
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                // Нули в хвосте оставляет сбой, после которого размер файла успел вырасти, а данные - нет
+                if (isZeroTail(in)) {
+                    return null;
+                }
+                throw new IOException("Corrupt journal record length: " + length);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            int checksum = in.readInt();
+            return checksum == checksum(body) ? body : CORRUPT;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static boolean isZeroTail(InputStream in) throws IOException {
+        int value;
+        while ((value = in.read()) != -1) {
+            if (value != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void apply(byte[] body, Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        String levelName = in.readUTF();
+        switch (op) {
+            case OP_CREATE:
+                String name = in.readUTF();
+                int owner = PlayerIds.parse(in.readUTF());
+                Region region = new Region(name, owner, levelName,
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                int memberCount = in.readInt();
+                for (int i = 0; i < memberCount; i++) {
+                    region.addMember(PlayerIds.parse(in.readUTF()));
+                }
+                if (in.available() > 0) {
+                    int optionCount = in.readInt();
+                    for (int i = 0; i < optionCount; i++) {
+                        String key = in.readUTF();
+                        String value = in.readUTF();
+                        // Настройки, которых эта версия не знает, пропускаем
+                        if (Region.OPTIONS.contains(key)) {
+                            region.setOption(key, value);
+                        }
+                    }
+                }
+                handler.create(region);
+                break;
+            case OP_DELETE:
+                handler.delete(in.readUTF());
+                break;
+            case OP_ADD_MEMBER:
+                handler.addMember(in.readUTF(), PlayerIds.parse(in.readUTF()));
+                break;
+            case OP_REMOVE_MEMBER:
+                handler.removeMember(in.readUTF(), PlayerIds.parse(in.readUTF()));
+                break;
+            case OP_PLAYER:
+                handler.player(new UUID(in.readLong(), in.readLong()), in.readUTF());
+                break;
+            case OP_SET_OPTION:
+                handler.setOption(in.readUTF(), in.readUTF(), in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown journal operation: " + op);
+        }
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(byte op, String levelName, Body body) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(op);
+            out.writeUTF(levelName);
+            body.write(out);
+            out.flush();
+            byte[] bytes = payload.toByteArray();
+
+            ByteBuffer record = ByteBuffer.allocate(bytes.length + 8);
+            record.putInt(bytes.length);
+            record.put(bytes);
+            record.putInt(checksum(bytes));
+            return record.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,191 @@
+package org.debianrose.deregion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Метрики проверок защиты и сохранения. Проверки пишутся только из основного потока,
+// сохранение - из потока записи, поэтому его счётчики под блокировкой.
+// Когда метрики выключены, объект не создаётся и обработчики событий платят одну проверку на null
+public class RegionMetrics {
+
+    public enum Check {
+        BREAK("break"),
+        PLACE("place"),
+        BLOCK_EXPLODE("block explode"),
+        ENTITY_EXPLODE("entity explode"),
+        INTERACT("interact"),
+        MOVE("move"),
+        PHYSICS("physics");
+
+        private final String label;
+
+        Check(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Io {
+        SAVE("save"),
+        JOURNAL("journal"),
+        LOAD("load");
+
+        private final String label;
+
+        Io(String label) {
+            this.label = label;
+        }
+    }
+
+    private final CheckStats[] checks = new CheckStats[Check.values().length];
+    private final IoStats[] io = new IoStats[Io.values().length];
+    private long startedAt = System.currentTimeMillis();
+    // Регионы, просмотренные текущей проверкой; сбрасывается в record()
+    private int examined;
+
+    public RegionMetrics() {
+        reset();
+    }
+
+    public void examine(int regions) {
+        examined += regions;
+    }
+
+    public void record(Check check, long startNanos, boolean denied) {
+        CheckStats stats = checks[check.ordinal()];
+        stats.latency.record(System.nanoTime() - startNanos);
+        if (denied) {
+            stats.denies++;
+        }
+        stats.examined += examined;
+        examined = 0;
+    }
+
+    public void recordIo(Io kind, long startNanos, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        IoStats stats = io[kind.ordinal()];
+        synchronized (stats) {
+            stats.count++;
+            stats.totalNanos += nanos;
+            stats.lastNanos = nanos;
+            stats.maxNanos = Math.max(stats.maxNanos, nanos);
+            stats.bytes += bytes;
+            stats.lastBytes = bytes;
+        }
+    }
+
+    public void reset() {
+        for (Check check : Check.values()) {
+            checks[check.ordinal()] = new CheckStats();
+        }
+        for (Io kind : Io.values()) {
+            io[kind.ordinal()] = new IoStats();
+        }
+        startedAt = System.currentTimeMillis();
+        examined = 0;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Check check : Check.values()) {
+            CheckStats stats = checks[check.ordinal()];
+            Histogram latency = stats.latency;
+            if (latency.count == 0) {
+                lines.add(check.label + ": no calls");
+                continue;
+            }
+            lines.add(String.format("%s: %d calls, %d denied, avg %s, p50 <%s, p99 <%s, max %s, %.2f regions/check",
+                    check.label, latency.count, stats.denies, formatNanos(latency.total / latency.count),
+                    formatNanos(latency.percentile(0.5)), formatNanos(latency.percentile(0.99)),
+                    formatNanos(latency.max), (double) stats.examined / latency.count));
+        }
+        for (Io kind : Io.values()) {
+            IoStats stats = io[kind.ordinal()];
+            synchronized (stats) {
+                if (stats.count == 0) {
+                    lines.add(kind.label + ": none");
+                    continue;
+                }
+                lines.add(String.format("%s: %d times, last %s (%s), avg %s, max %s, %s total",
+                        kind.label, stats.count, formatNanos(stats.lastNanos), formatBytes(stats.lastBytes),
+                        formatNanos(stats.totalNanos / stats.count), formatNanos(stats.maxNanos), formatBytes(stats.bytes)));
+            }
+        }
+        return lines;
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 10_000_000) {
+            return nanos / 1000 + "us";
+        }
+        return nanos / 1_000_000 + "ms";
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 10 * 1024) {
+            return bytes + "B";
+        }
+        if (bytes < 10 * 1024 * 1024) {
+            return bytes / 1024 + "KB";
+        }
+        return bytes / (1024 * 1024) + "MB";
+    }
+
+    private static class CheckStats {
+        private final Histogram latency = new Histogram();
+        private long denies;
+        private long examined;
+    }
+
+    private static class IoStats {
+        private long count;
+        private long totalNanos;
+        private long lastNanos;
+        private long maxNanos;
+        private long bytes;
+        private long lastBytes;
+    }
+
+    // Гистограмма по степеням двойки: корзина i хранит значения из [2^(i-1), 2^i)
+    static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+            count++;
+            total += nanos;
+            if (nanos > max) {
+                max = nanos;
+            }
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        // Верхняя граница корзины, в которую попадает перцентиль
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return i == 0 ? 1 : Math.min(1L << i, max + 1);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.util.List;
+
+// Запросы к регионам для других плагинов. Регистрируется как сервис Nukkit:
+// getServer().getServiceManager().getProvider(RegionQuery.class).getProvider()
+// Все методы можно вызывать из любого потока: они читают неизменяемый снимок без блокировок.
+// Возвращаемые регионы тоже не меняются - изменение региона публикует новый объект
+public interface RegionQuery {
+
+    // Регионы, содержащие точку
+    List<Region> getRegionsAt(String levelName, int x, int y, int z);
+
+    boolean isProtected(String levelName, int x, int y, int z);
+
+    // Разрешённые в точке флаги, маска битов RegionFlags; вне регионов и в незагруженных мирах - RegionFlags.ALL
+    int getFlagsAt(String levelName, int x, int y, int z);
+
+    // Регионы, пересекающие коробку (границы включительно)
+    List<Region> getRegionsIntersecting(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
+    // Регионы, пересекающие коробку, с объёмом пересечения в блоках, от большего к меньшему
+    List<Overlap> getOverlaps(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ);
+
+    // Ближайший к точке регион не дальше maxDistance блоков или null
+    Region getNearestRegion(String levelName, int x, int y, int z, int maxDistance);
+
+    // Место для коробки того же размера рядом с заданной, где она не задевает ни одного региона:
+    // {minX, minY, minZ, maxX, maxY, maxZ} или null, если в пределах maxDistance блоков места не нашлось
+    int[] findFreeSpace(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int maxDistance);
+
+    // Пакетная проверка точек одного мира: result[i] - защищена ли точка (xs[i], ys[i], zs[i])
+    boolean[] areProtected(String levelName, int[] xs, int[] ys, int[] zs);
+
+    int getRegionCount();
+
+    // Растёт с каждым изменением регионов
+    long getVersion();
+
+    // Неизменяемый снимок текущего состояния для серии согласованных запросов
+    RegionQuery snapshot();
+
+    final class Overlap {
+        private final Region region;
+        private final long volume;
+
+        public Overlap(Region region, long volume) {
+            this.region = region;
+            this.volume = volume;
+        }
+
+        public Region getRegion() {
+            return region;
+        }
+
+        public long getVolume() {
+            return volume;
+        }
+    }
+}
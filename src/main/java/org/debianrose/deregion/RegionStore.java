@@ -0,0 +1,481 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Все регионы плагина. Регионы загруженных миров живут в памяти и в индексе, а миры, которые сейчас
+// не загружены, хранятся компактной бинарной секцией и разворачиваются при загрузке мира.
+// Меняется только из основного потока. Каждое изменение собирает новую копию индекса и публикует её
+// одной записью в volatile-поле, так что другие потоки читают индекс через getQuery() без блокировок
+public class RegionStore {
+
+    private final Map<String, Region> regions = new HashMap<>();
+    private final Map<String, DormantLevel> dormantLevels = new HashMap<>();
+    private final Map<String, String> dormantRegionLevels = new HashMap<>();
+    // Вторичные индексы имён для /region list и лимитов: по владельцу, участнику и миру.
+    // Имена отсортированы, чтобы страницы списка и поиск по префиксу не требовали сортировки.
+    // Регионы незагруженных миров учитываются по владельцу и миру, их участники не разбираются
+    private final Map<Integer, NavigableSet<String>> ownedNames = new HashMap<>();
+    private final Map<Integer, NavigableSet<String>> memberNames = new HashMap<>();
+    private final NavigableMap<String, NavigableSet<String>> levelNames = new TreeMap<>();
+    private volatile RegionIndex index = new RegionIndex();
+    // Копия индекса, которую наполняет текущий пакет изменений
+    private RegionIndex pending;
+    private int batchDepth;
+    private final RegionQuery query = new LiveQuery();
+
+    public Region get(String name) {
+        return regions.get(name);
+    }
+
+    public boolean contains(String name) {
+        return regions.containsKey(name) || dormantRegionLevels.containsKey(name);
+    }
+
+    // Имя мира, если регион существует, но его мир сейчас не загружен
+    public String getDormantLevel(String name) {
+        return dormantRegionLevels.get(name);
+    }
+
+    public Collection<Region> getRegions() {
+        return Collections.unmodifiableCollection(regions.values());
+    }
+
+    public Collection<String> getDormantRegionNames() {
+        return Collections.unmodifiableSet(dormantRegionLevels.keySet());
+    }
+
+    public int size() {
+        return regions.size();
+    }
+
+    // Сколько регионов у игрока, включая регионы незагруженных миров
+    public int getOwnedCount(int playerId) {
+        NavigableSet<String> names = ownedNames.get(playerId);
+        return names != null ? names.size() : 0;
+    }
+
+    public NavigableSet<String> getOwnedNames(int playerId) {
+        return unmodifiable(ownedNames.get(playerId));
+    }
+
+    public NavigableSet<String> getMemberNames(int playerId) {
+        return unmodifiable(memberNames.get(playerId));
+    }
+
+    // Имя мира региона, загруженного или нет
+    public String getLevelOf(String name) {
+        Region region = regions.get(name);
+        return region != null ? region.getLevelName() : dormantRegionLevels.get(name);
+    }
+
+    // Страница отсортированных имён регионов, подходящих под все заданные фильтры: ownerId и memberId -
+    // PlayerIds.NONE, levelName и prefix - null, если фильтра нет. Перебирается только самый узкий из индексов
+    public Page list(int ownerId, int memberId, String levelName, String prefix, int page, int pageSize) {
+        List<NavigableSet<String>> sources = new ArrayList<>();
+        if (ownerId != PlayerIds.NONE) {
+            sources.add(getOwnedNames(ownerId));
+        } else if (memberId != PlayerIds.NONE) {
+            sources.add(getMemberNames(memberId));
+        } else if (levelName != null) {
+            sources.add(unmodifiable(levelNames.get(levelName)));
+        } else {
+            // Без фильтров страницы идут по мирам по порядку
+            sources.addAll(levelNames.values());
+        }
+
+        // Пересекать нужно, только если кроме индекса, по которому идём, задан ещё фильтр
+        boolean intersect = ownerId != PlayerIds.NONE && memberId != PlayerIds.NONE
+                || levelName != null && (ownerId != PlayerIds.NONE || memberId != PlayerIds.NONE);
+
+        List<String> names = new ArrayList<>(pageSize);
+        int skip = Math.max(0, page - 1) * pageSize;
+        int total = 0;
+        for (NavigableSet<String> source : sources) {
+            NavigableSet<String> candidates = prefix != null
+                    ? source.subSet(prefix, true, prefix + Character.MAX_VALUE, false) : source;
+            if (!intersect) {
+                // Всего столько, сколько в индексе, а перебираются только имена до конца страницы
+                int size = candidates.size();
+                if (total + size > skip && names.size() < pageSize) {
+                    Iterator<String> iterator = candidates.iterator();
+                    for (int i = total; i < skip; i++) {
+                        iterator.next();
+                    }
+                    while (iterator.hasNext() && names.size() < pageSize) {
+                        names.add(iterator.next());
+                    }
+                }
+                total += size;
+                continue;
+            }
+            for (String name : candidates) {
+                if (memberId != PlayerIds.NONE && ownerId != PlayerIds.NONE && !getMemberNames(memberId).contains(name)) {
+                    continue;
+                }
+                if (levelName != null && !levelName.equals(getLevelOf(name))) {
+                    continue;
+                }
+                if (total >= skip && names.size() < pageSize) {
+                    names.add(name);
+                }
+                total++;
+            }
+        }
+        return new Page(names, total, page, pageSize);
+    }
+
+    public int dormantSize() {
+        return dormantRegionLevels.size();
+    }
+
+    public boolean isEmpty() {
+        return regions.isEmpty() && dormantRegionLevels.isEmpty();
+    }
+
+    public RegionIndex getIndex() {
+        return index;
+    }
+
+    // Текущее состояние для других потоков и плагинов
+    public RegionQuery getQuery() {
+        return query;
+    }
+
+    // Растёт при любом изменении регионов или участников; по нему устаревают кэши решений
+    public int getGeneration() {
+        return (int) index.getVersion();
+    }
+
+    // Изменения внутри пакета копят одну копию индекса и публикуют её в endBatch().
+    // Без пакета загрузка N регионов скопировала бы таблицу мира N раз
+    public void beginBatch() {
+        if (batchDepth++ == 0) {
+            pending = index.copy();
+        }
+    }
+
+    public void endBatch() {
+        if (--batchDepth == 0) {
+            pending.seal();
+            index = pending;
+            pending = null;
+        }
+    }
+
+    public void put(Region region) {
+        beginBatch();
+        try {
+            Region previous = regions.put(region.getName(), region);
+            if (previous != null) {
+                pending.remove(previous);
+                unindex(previous);
+            }
+            pending.add(region);
+            index(region);
+        } finally {
+            endBatch();
+        }
+    }
+
+    // Много регионов одной публикацией индекса, например сетка участков
+    public void putAll(Collection<Region> added) {
+        beginBatch();
+        try {
+            for (Region region : added) {
+                put(region);
+            }
+        } finally {
+            endBatch();
+        }
+    }
+
+    public Region remove(String name) {
+        Region region = regions.remove(name);
+        if (region != null) {
+            unindex(region);
+            beginBatch();
+            pending.remove(region);
+            endBatch();
+        }
+        return region;
+    }
+
+    // Опубликованные регионы не меняются: участник добавляется в копию, которая заменяет оригинал
+    public Region addMember(Region region, int memberId) {
+        if (region.isMember(memberId)) {
+            return region;
+        }
+        Region updated = region.copy();
+        updated.addMember(memberId);
+        put(updated);
+        return updated;
+    }
+
+    public Region removeMember(Region region, int memberId) {
+        if (!region.isMember(memberId)) {
+            return region;
+        }
+        Region updated = region.copy();
+        updated.removeMember(memberId);
+        put(updated);
+        return updated;
+    }
+
+    public Region setOption(Region region, String key, String value) {
+        Region updated = region.copy();
+        updated.setOption(key, value);
+        put(updated);
+        return updated;
+    }
+
+    public void putDormantLevel(String levelName, byte[] section) {
+        if (dormantLevels.containsKey(levelName)) {
+            // Две секции одного мира сливаем в одну
+            List<Region> merged = new ArrayList<>();
+            BinarySnapshotFormat.decodeSection(ByteBuffer.wrap(dormantLevels.get(levelName).section), levelName, merged::add);
+            BinarySnapshotFormat.decodeSection(ByteBuffer.wrap(section), levelName, merged::add);
+            section = BinarySnapshotFormat.encodeSection(merged);
+        }
+        List<String> owners = new ArrayList<>();
+        List<String> names = BinarySnapshotFormat.readSectionNames(ByteBuffer.wrap(section), owners);
+        int[] ownerIds = new int[owners.size()];
+        for (int i = 0; i < ownerIds.length; i++) {
+            ownerIds[i] = PlayerIds.parse(owners.get(i));
+        }
+        DormantLevel level = new DormantLevel(section, names, ownerIds);
+        dormantLevels.put(levelName, level);
+        indexDormant(levelName, level);
+    }
+
+    public void putDormantRegions(String levelName, Collection<Region> levelRegions) {
+        if (!levelRegions.isEmpty()) {
+            putDormantLevel(levelName, BinarySnapshotFormat.encodeSection(levelRegions));
+        }
+    }
+
+    public boolean isDormant(String levelName) {
+        return dormantLevels.containsKey(levelName);
+    }
+
+    // Мир загрузился - разворачиваем его регионы и добавляем в индекс
+    public int loadLevel(String levelName) {
+        DormantLevel level = dormantLevels.remove(levelName);
+        if (level == null) {
+            return 0;
+        }
+        for (int i = 0; i < level.regionNames.size(); i++) {
+            String name = level.regionNames.get(i);
+            dormantRegionLevels.remove(name);
+            removeName(ownedNames, level.owners[i], name);
+            removeName(levelNames, levelName, name);
+        }
+        int[] count = new int[1];
+        beginBatch();
+        try {
+            BinarySnapshotFormat.decodeSection(ByteBuffer.wrap(level.section), levelName, region -> {
+                put(region);
+                count[0]++;
+            });
+        } finally {
+            endBatch();
+        }
+        return count[0];
+    }
+
+    // Мир выгрузился - убираем его регионы из памяти, сохраняя данные в компактном виде
+    public int unloadLevel(String levelName) {
+        List<Region> levelRegions = new ArrayList<>();
+        for (Region region : regions.values()) {
+            if (region.getLevelName().equals(levelName)) {
+                levelRegions.add(region);
+            }
+        }
+        beginBatch();
+        for (Region region : levelRegions) {
+            remove(region.getName());
+        }
+        endBatch();
+        putDormantRegions(levelName, levelRegions);
+        return levelRegions.size();
+    }
+
+    public void replaceWith(RegionStore other) {
+        regions.clear();
+        dormantLevels.clear();
+        dormantRegionLevels.clear();
+        ownedNames.clear();
+        memberNames.clear();
+        levelNames.clear();
+        beginBatch();
+        pending.clear();
+        for (Region region : other.regions.values()) {
+            put(region);
+        }
+        endBatch();
+        dormantLevels.putAll(other.dormantLevels);
+        for (Map.Entry<String, DormantLevel> entry : other.dormantLevels.entrySet()) {
+            indexDormant(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void index(Region region) {
+        addName(ownedNames, region.getOwner(), region.getName());
+        for (int member : region.getMembers()) {
+            addName(memberNames, member, region.getName());
+        }
+        addName(levelNames, region.getLevelName(), region.getName());
+    }
+
+    private void unindex(Region region) {
+        removeName(ownedNames, region.getOwner(), region.getName());
+        for (int member : region.getMembers()) {
+            removeName(memberNames, member, region.getName());
+        }
+        removeName(levelNames, region.getLevelName(), region.getName());
+    }
+
+    private void indexDormant(String levelName, DormantLevel level) {
+        for (int i = 0; i < level.regionNames.size(); i++) {
+            String name = level.regionNames.get(i);
+            dormantRegionLevels.put(name, levelName);
+            addName(ownedNames, level.owners[i], name);
+            addName(levelNames, levelName, name);
+        }
+    }
+
+    private static <K> void addName(Map<K, NavigableSet<String>> index, K key, String name) {
+        index.computeIfAbsent(key, k -> new TreeSet<>()).add(name);
+    }
+
+    private static <K> void removeName(Map<K, NavigableSet<String>> index, K key, String name) {
+        NavigableSet<String> names = index.get(key);
+        if (names != null && names.remove(name) && names.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static NavigableSet<String> unmodifiable(NavigableSet<String> names) {
+        return names != null ? Collections.unmodifiableNavigableSet(names) : Collections.emptyNavigableSet();
+    }
+
+    // Регионы неизменяемы, поэтому поток записи сериализует их без копирования
+    public StorageSnapshot snapshot() {
+        Map<String, List<Region>> levels = new TreeMap<>();
+        for (Region region : regions.values()) {
+            levels.computeIfAbsent(region.getLevelName(), k -> new ArrayList<>()).add(region);
+            PlayerIds.retain(region.getOwner());
+            for (int member : region.getMembers()) {
+                PlayerIds.retain(member);
+            }
+        }
+        Map<String, byte[]> dormant = new TreeMap<>();
+        for (Map.Entry<String, DormantLevel> entry : dormantLevels.entrySet()) {
+            dormant.put(entry.getKey(), entry.getValue().section);
+        }
+        return new StorageSnapshot(levels, dormant, PlayerIds.getRetainedNames(), regions.size() + dormantRegionLevels.size());
+    }
+
+    // Каждый вызов читает последний опубликованный индекс
+    private class LiveQuery implements RegionQuery {
+
+        @Override
+        public List<Region> getRegionsAt(String levelName, int x, int y, int z) {
+            return index.getRegionsAt(levelName, x, y, z);
+        }
+
+        @Override
+        public boolean isProtected(String levelName, int x, int y, int z) {
+            return index.isProtected(levelName, x, y, z);
+        }
+
+        @Override
+        public int getFlagsAt(String levelName, int x, int y, int z) {
+            return index.getFlagsAt(levelName, x, y, z);
+        }
+
+        @Override
+        public List<Region> getRegionsIntersecting(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            return index.getRegionsIntersecting(levelName, minX, minY, minZ, maxX, maxY, maxZ);
+        }
+
+        @Override
+        public List<Overlap> getOverlaps(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            return index.getOverlaps(levelName, minX, minY, minZ, maxX, maxY, maxZ);
+        }
+
+        @Override
+        public Region getNearestRegion(String levelName, int x, int y, int z, int maxDistance) {
+            return index.getNearestRegion(levelName, x, y, z, maxDistance);
+        }
+
+        @Override
+        public int[] findFreeSpace(String levelName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int maxDistance) {
+            return index.findFreeSpace(levelName, minX, minY, minZ, maxX, maxY, maxZ, maxDistance);
+        }
+
+        @Override
+        public boolean[] areProtected(String levelName, int[] xs, int[] ys, int[] zs) {
+            return index.areProtected(levelName, xs, ys, zs);
+        }
+
+        @Override
+        public int getRegionCount() {
+            return index.getRegionCount();
+        }
+
+        @Override
+        public long getVersion() {
+            return index.getVersion();
+        }
+
+        @Override
+        public RegionQuery snapshot() {
+            return index;
+        }
+    }
+
+    private static class DormantLevel {
+        private final byte[] section;
+        private final List<String> regionNames;
+        private final int[] owners;
+
+        DormantLevel(byte[] section, List<String> regionNames, int[] owners) {
+            this.section = section;
+            this.regionNames = regionNames;
+            this.owners = owners;
+        }
+    }
+
+    public static class Page {
+        private final List<String> names;
+        private final int total;
+        private final int page;
+        private final int pageCount;
+
+        Page(List<String> names, int total, int page, int pageSize) {
+            this.names = Collections.unmodifiableList(names);
+            this.total = total;
+            this.page = page;
+            this.pageCount = Math.max(1, (total + pageSize - 1) / pageSize);
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+    }
+}
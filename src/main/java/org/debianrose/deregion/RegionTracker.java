@@ -0,0 +1,180 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.Player;
+import cn.nukkit.level.Location;
+import org.debianrose.deregion.Main.Region;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Какие регионы сейчас вокруг каждого игрока. PlayerMoveEvent - самое частое событие сервера,
+// поэтому движения внутри блока отсекает Main, а индекс запрашивается только при смене чанка
+// или версии индекса; в остальное время проверяются лишь регионы, задевающие текущий чанк.
+// Вызывается только из основного потока
+public class RegionTracker {
+
+    public interface Listener {
+        void onEnter(Player player, Region region);
+
+        void onLeave(Player player, Region region);
+    }
+
+    private static final Region[] EMPTY = new Region[0];
+
+    private final RegionStore store;
+    private final Map<UUID, State> states = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public RegionTracker(RegionStore store) {
+        this.store = store;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Регионы, в которых игрок стоял при последнем перемещении
+    public List<Region> getRegions(Player player) {
+        State state = states.get(player.getUniqueId());
+        return state != null ? Collections.unmodifiableList(Arrays.asList(state.current)) : Collections.emptyList();
+    }
+
+    // Игрок перешёл в блок to. Если по пути он входит в регион, куда ему нельзя, возвращает этот регион
+    // и ничего не меняет - событие нужно отменить. Иначе обновляет состояние, рассылает вход и выход и возвращает null.
+    // Уже стоящего в запретном регионе (зашёл на сервер, возродился внутри) не держим - он может выйти
+    public Region moveTo(Player player, Location from, Location to, boolean bypass) {
+        int levelId = LevelIds.of(to.getLevel());
+        int x = to.getFloorX();
+        int y = to.getFloorY();
+        int z = to.getFloorZ();
+
+        State state = states.get(player.getUniqueId());
+        boolean initial = state == null;
+        if (initial) {
+            state = new State();
+            states.put(player.getUniqueId(), state);
+        }
+
+        int chunkX = x >> 4;
+        int chunkZ = z >> 4;
+        int generation = store.getGeneration();
+        boolean refreshed = false;
+        if (state.levelId != levelId || state.chunkX != chunkX || state.chunkZ != chunkZ || state.generation != generation) {
+            state.levelId = levelId;
+            state.chunkX = chunkX;
+            state.chunkZ = chunkZ;
+            state.generation = generation;
+            state.candidates = candidates(store.getIndex(), levelId, chunkX, chunkZ);
+            refreshed = true;
+        }
+
+        // Большую часть времени игрок вне регионов или не пересекает их границ - тогда без выделений памяти
+        Region[] candidates = state.candidates;
+        Region[] current = state.current;
+        int inside = 0;
+        boolean changed = false;
+        for (Region candidate : candidates) {
+            if (candidate.contains(levelId, x, y, z)) {
+                inside++;
+                if (indexOf(current, candidate) < 0) {
+                    changed = true;
+                }
+            }
+        }
+        if (!changed && inside == current.length) {
+            // Регионы могли замениться обновлёнными копиями - держим свежие объекты
+            if (refreshed && inside > 0) {
+                state.current = collect(candidates, inside, levelId, x, y, z);
+            }
+            return null;
+        }
+
+        Region[] next = collect(candidates, inside, levelId, x, y, z);
+        if (!bypass && !initial) {
+            int playerId = PlayerIds.of(player);
+            int fromLevelId = LevelIds.of(from.getLevel());
+            for (Region region : next) {
+                if (indexOf(current, region) < 0 && !region.canEnter(playerId)
+                        && !region.contains(fromLevelId, from.getFloorX(), from.getFloorY(), from.getFloorZ())) {
+                    return region;
+                }
+            }
+        }
+
+        state.current = next;
+        for (Region region : current) {
+            if (indexOf(next, region) < 0) {
+                for (Listener listener : listeners) {
+                    listener.onLeave(player, region);
+                }
+            }
+        }
+        for (Region region : next) {
+            if (indexOf(current, region) < 0) {
+                for (Listener listener : listeners) {
+                    listener.onEnter(player, region);
+                }
+            }
+        }
+        return null;
+    }
+
+    public void remove(Player player) {
+        states.remove(player.getUniqueId());
+    }
+
+    public int getTrackedCount() {
+        return states.size();
+    }
+
+    private static Region[] candidates(RegionIndex index, int levelId, int chunkX, int chunkZ) {
+        Region[] chunk = index.getRegionsInChunk(levelId, chunkX, chunkZ);
+        Region[] large = index.getLargeRegions(levelId);
+        if (large.length == 0) {
+            return chunk;
+        }
+        if (chunk.length == 0) {
+            return large;
+        }
+        Region[] merged = Arrays.copyOf(chunk, chunk.length + large.length);
+        System.arraycopy(large, 0, merged, chunk.length, large.length);
+        return merged;
+    }
+
+    private static Region[] collect(Region[] candidates, int count, int levelId, int x, int y, int z) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        Region[] result = new Region[count];
+        int i = 0;
+        for (Region candidate : candidates) {
+            if (candidate.contains(levelId, x, y, z)) {
+                result[i++] = candidate;
+            }
+        }
+        return result;
+    }
+
+    // Регион сравнивается по имени: после изменения участников или настроек в индексе лежит его копия
+    private static int indexOf(Region[] regions, Region region) {
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] == region || regions[i].getName().equals(region.getName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class State {
+        private int levelId = -1;
+        private int chunkX;
+        private int chunkZ;
+        private int generation = -1;
+        private Region[] candidates = EMPTY;
+        private Region[] current = EMPTY;
+    }
+}
@@ -0,0 +1,168 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.plugin.PluginLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Фоновый поток записи: журнал и снимки идут через одну очередь, поэтому порядок сохраняется
+public class RegionWriter {
+
+    private final File dataFolder;
+    private final SnapshotFormat format;
+    private final RegionJournal journal;
+    private final PluginLogger logger;
+    private final long fsyncIntervalMillis;
+    private final RegionMetrics metrics;
+    private final ScheduledExecutorService executor;
+    private boolean forceScheduled;
+
+    public RegionWriter(File dataFolder, SnapshotFormat format, RegionJournal journal, PluginLogger logger,
+                        long fsyncIntervalMillis, RegionMetrics metrics) {
+        this.dataFolder = dataFolder;
+        this.format = format;
+        this.journal = journal;
+        this.logger = logger;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DeRegion-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void append(byte[] record) {
+        executor.execute(() -> {
+            try {
+                long start = metrics != null ? System.nanoTime() : 0;
+                journal.append(record);
+                if (metrics != null) {
+                    metrics.recordIo(RegionMetrics.Io.JOURNAL, start, record.length);
+                }
+                scheduleForce();
+            } catch (IOException e) {
+                logger.error("Could not append to " + journal.getFile().getName(), e);
+            }
+        });
+    }
+
+    // Записывает снимок и очищает журнал: все записи до снимка уже в нём учтены
+    public void compact(StorageSnapshot snapshot) {
+        executor.execute(() -> writeSnapshot(snapshot));
+    }
+
+    // Выгрузка в другой формат; журнал при этом не очищается
+    public void export(SnapshotFormat exportFormat, StorageSnapshot snapshot, Runnable onComplete) {
+        executor.execute(() -> {
+            if (write(exportFormat, snapshot)) {
+                onComplete.run();
+            }
+        });
+    }
+
+    // Прочие файлы плагина (трассы) пишутся в том же потоке, чтобы не заводить ещё один
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // Служебные файлы вроде выгрузки метрик: та же атомарная запись, но без журнала
+    public void writeFile(String fileName, byte[] content) {
+        executor.execute(() -> {
+            try {
+                writeAtomically(new File(dataFolder, fileName).toPath(), content);
+            } catch (IOException e) {
+                logger.error("Could not write " + fileName, e);
+            }
+        });
+    }
+
+    public void flush(StorageSnapshot snapshot) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for pending region writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeSnapshot(snapshot)) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Could not close " + journal.getFile().getName(), e);
+            }
+        }
+    }
+
+    private void scheduleForce() {
+        if (forceScheduled) {
+            return;
+        }
+        forceScheduled = true;
+        executor.schedule(() -> {
+            forceScheduled = false;
+            try {
+                journal.force();
+            } catch (IOException e) {
+                logger.error("Could not sync " + journal.getFile().getName(), e);
+            }
+        }, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean writeSnapshot(StorageSnapshot snapshot) {
+        // Если снимок не записался, журнал не трогаем: без него изменения после прошлого снимка потеряются
+        if (!write(format, snapshot)) {
+            return false;
+        }
+        try {
+            journal.truncate();
+        } catch (IOException e) {
+            logger.error("Could not truncate " + journal.getFile().getName(), e);
+        }
+        return true;
+    }
+
+    private boolean write(SnapshotFormat target, StorageSnapshot snapshot) {
+        File file = new File(dataFolder, target.getFileName());
+        try {
+            long start = metrics != null ? System.nanoTime() : 0;
+            byte[] content = target.write(snapshot);
+            writeAtomically(file.toPath(), content);
+            if (metrics != null) {
+                metrics.recordIo(RegionMetrics.Io.SAVE, start, content.length);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Could not save " + file.getName(), e);
+            return false;
+        }
+    }
+
+    static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
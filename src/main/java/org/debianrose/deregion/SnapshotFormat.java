@@ -0,0 +1,33 @@
+package org.debianrose.deregion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+// Формат полного снимка регионов на диске. Регионы в снимке сгруппированы по мирам
+public interface SnapshotFormat {
+
+    String getName();
+
+    String getFileName();
+
+    byte[] write(StorageSnapshot snapshot) throws IOException;
+
+    // Регионы загруженных миров сразу попадают в хранилище и индекс, остальные откладываются в компактном виде.
+    // Битые записи уходят в errors и пропускаются
+    void read(File file, RegionStore store, Predicate<String> isLevelLoaded, BiConsumer<String, Exception> errors) throws IOException;
+
+    static SnapshotFormat byName(String name) {
+        switch (name.toLowerCase()) {
+            case "yaml":
+            case "yml":
+                return new YamlSnapshotFormat();
+            case "binary":
+            case "dat":
+                return new BinarySnapshotFormat();
+            default:
+                throw new IllegalArgumentException("Unknown storage format: " + name);
+        }
+    }
+}
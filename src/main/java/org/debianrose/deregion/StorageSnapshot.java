@@ -0,0 +1,56 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Неизменяемый снимок хранилища для записи на диск, сгруппированный по мирам
+public class StorageSnapshot {
+
+    private final Map<String, List<Region>> levels;
+    private final Map<String, byte[]> dormantLevels;
+    private final Map<UUID, String> players;
+    private final int regionCount;
+
+    public StorageSnapshot(Map<String, List<Region>> levels, Map<String, byte[]> dormantLevels, Map<UUID, String> players, int regionCount) {
+        this.levels = levels;
+        this.dormantLevels = dormantLevels;
+        this.players = players;
+        this.regionCount = regionCount;
+    }
+
+    // Регионы загруженных миров
+    public Map<String, List<Region>> getLevels() {
+        return levels;
+    }
+
+    // Незагруженные миры в виде бинарных секций BinarySnapshotFormat
+    public Map<String, byte[]> getDormantLevels() {
+        return dormantLevels;
+    }
+
+    // Последние известные имена игроков, упомянутых в регионах
+    public Map<UUID, String> getPlayers() {
+        return players;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    public Set<String> getLevelNames() {
+        Set<String> names = new TreeSet<>(levels.keySet());
+        names.addAll(dormantLevels.keySet());
+        return names;
+    }
+
+    public List<Region> getRegions(String levelName) {
+        List<Region> result = new ArrayList<>(levels.getOrDefault(levelName, Collections.emptyList()));
+        byte[] section = dormantLevels.get(levelName);
+        if (section != null) {
+            BinarySnapshotFormat.decodeSection(ByteBuffer.wrap(section), levelName, result::add);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,219 @@
+package org.debianrose.deregion;
+
+import cn.nukkit.plugin.PluginLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+// Запись трассы проверок защиты для TraceReplay. Основной поток пишет в буфер,
+// заполненные буферы уходят в файл через поток записи.
+// Формат: [int magic][int версия][long время начала], затем записи [byte тип][int тик][данные]:
+// LEVEL: [int id][short длина][UTF-8 имя] - перед первым упоминанием мира
+// PLAYER: [int id][long][long UUID] - перед первым упоминанием игрока
+// BREAK, PLACE, INTERACT: [int мир][int x][int y][int z][int игрок][byte флаги]
+// BLOCK_EXPLODE, ENTITY_EXPLODE: [int мир][int n][int x][int y][int z][(n-1) x short dx, dy, dz][int убрано блоков]
+public class TraceRecorder {
+
+    static final int MAGIC = 0x44525452;
+    static final int VERSION = 1;
+
+    static final byte LEVEL = 1;
+    static final byte PLAYER = 2;
+    static final byte BREAK = 3;
+    static final byte PLACE = 4;
+    static final byte INTERACT = 5;
+    static final byte BLOCK_EXPLODE = 6;
+    static final byte ENTITY_EXPLODE = 7;
+
+    static final int FLAG_OP = 1;
+    static final int FLAG_DENIED = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final Executor writer;
+    private final PluginLogger logger;
+    private final long maxBytes;
+    private final BitSet levelsWritten = new BitSet();
+    private final BitSet playersWritten = new BitSet();
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel;
+    private long bytes;
+    private long events;
+    private boolean full;
+
+    // Все методы, кроме работы с файлом, вызываются из основного потока
+    public TraceRecorder(File file, Executor writer, PluginLogger logger, long maxBytes) {
+        this.file = file;
+        this.writer = writer;
+        this.logger = logger;
+        this.maxBytes = maxBytes;
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(System.currentTimeMillis());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getBytes() {
+        return bytes + buffer.position();
+    }
+
+    // Трасса упёрлась в лимит размера и больше ничего не пишет
+    public boolean isFull() {
+        return full;
+    }
+
+    public void recordBlock(byte type, int tick, int levelId, int x, int y, int z, int playerId, boolean op, boolean denied) {
+        defineLevel(tick, levelId);
+        definePlayer(tick, playerId);
+        ensure(1 + 4 + 5 * 4 + 1);
+        if (full) {
+            return;
+        }
+        buffer.put(type);
+        buffer.putInt(tick);
+        buffer.putInt(levelId);
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.putInt(z);
+        buffer.putInt(playerId);
+        buffer.put((byte) ((op ? FLAG_OP : 0) | (denied ? FLAG_DENIED : 0)));
+        events++;
+    }
+
+    public void recordExplosion(byte type, int tick, int levelId, int[] xs, int[] ys, int[] zs, int count, int removed) {
+        if (count == 0) {
+            return;
+        }
+        // Смещения пишутся в short; взрывов таких размеров не бывает, но трассу это не должно ломать
+        for (int i = 1; i < count; i++) {
+            if (!fitsShort(xs[i] - xs[0]) || !fitsShort(ys[i] - ys[0]) || !fitsShort(zs[i] - zs[0])) {
+                return;
+            }
+        }
+        defineLevel(tick, levelId);
+        ensure(1 + 4 + 4 + 4 + 12 + (count - 1) * 6 + 4);
+        if (full) {
+            return;
+        }
+        buffer.put(type);
+        buffer.putInt(tick);
+        buffer.putInt(levelId);
+        buffer.putInt(count);
+        buffer.putInt(xs[0]);
+        buffer.putInt(ys[0]);
+        buffer.putInt(zs[0]);
+        for (int i = 1; i < count; i++) {
+            buffer.putShort((short) (xs[i] - xs[0]));
+            buffer.putShort((short) (ys[i] - ys[0]));
+            buffer.putShort((short) (zs[i] - zs[0]));
+        }
+        buffer.putInt(removed);
+        events++;
+    }
+
+    public void close() {
+        flushBuffer();
+        writer.execute(() -> {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException e) {
+                logger.error("Could not close " + file.getName(), e);
+            }
+        });
+    }
+
+    private void defineLevel(int tick, int levelId) {
+        if (levelsWritten.get(levelId)) {
+            return;
+        }
+        byte[] name = LevelIds.nameOf(levelId).getBytes(StandardCharsets.UTF_8);
+        ensure(1 + 4 + 4 + 2 + name.length);
+        if (full) {
+            return;
+        }
+        levelsWritten.set(levelId);
+        buffer.put(LEVEL);
+        buffer.putInt(tick);
+        buffer.putInt(levelId);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+    }
+
+    private void definePlayer(int tick, int playerId) {
+        if (playersWritten.get(playerId)) {
+            return;
+        }
+        ensure(1 + 4 + 4 + 16);
+        if (full) {
+            return;
+        }
+        playersWritten.set(playerId);
+        UUID uuid = PlayerIds.uuidOf(playerId);
+        buffer.put(PLAYER);
+        buffer.putInt(tick);
+        buffer.putInt(playerId);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    private void ensure(int length) {
+        if (full) {
+            return;
+        }
+        if (bytes + buffer.position() + length > maxBytes) {
+            full = true;
+            return;
+        }
+        if (buffer.remaining() < length) {
+            flushBuffer();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    private void flushBuffer() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        ByteBuffer chunk = buffer;
+        bytes += chunk.remaining();
+        buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, buffer.capacity()));
+        writer.execute(() -> {
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            } catch (IOException e) {
+                logger.error("Could not write " + file.getName(), e);
+            }
+        });
+    }
+
+    private static boolean fitsShort(int value) {
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+    }
+}
@@ -0,0 +1,286 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+// Проигрывает трассу TraceRecorder на снимке регионов без сервера и сравнивает решения
+// с записанными. Запуск: ./gradlew replayTrace --args="regions.dat trace.bin [--iterations 5] [--no-cache]"
+public class TraceReplay {
+
+    private static final int MAX_DIFFS_SHOWN = 20;
+
+    private final List<Event> events = new ArrayList<>();
+    private final Map<Integer, Integer> levelIds = new HashMap<>();
+    private final Map<Integer, UUID> players = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TraceReplay <regions.yml|regions.dat> <trace> [--iterations N] [--no-cache]");
+            System.exit(2);
+        }
+        int iterations = 5;
+        boolean cache = true;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--no-cache")) {
+                cache = false;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        File snapshotFile = new File(args[0]);
+        String fileName = snapshotFile.getName();
+        SnapshotFormat format = SnapshotFormat.byName(fileName.substring(fileName.lastIndexOf('.') + 1));
+        RegionStore store = new RegionStore();
+        long loadStart = System.nanoTime();
+        store.beginBatch();
+        try {
+            format.read(snapshotFile, store, levelName -> true,
+                    (name, e) -> System.err.println("Could not load region " + name + ": " + e));
+        } finally {
+            store.endBatch();
+        }
+        System.out.printf("Loaded %d regions from %s in %s%n", store.size(), fileName,
+                RegionMetrics.formatNanos(System.nanoTime() - loadStart));
+
+        TraceReplay replay = new TraceReplay();
+        replay.read(new File(args[1]));
+        System.out.printf("Read %d events from %s%n", replay.events.size(), args[1]);
+
+        // Первый проход сверяет решения, остальные только меряют время на прогретом коде
+        for (int i = 0; i < iterations; i++) {
+            PermissionCache permissionCache = cache ? new PermissionCache(64) : null;
+            replay.run(new ProtectionEngine(store, permissionCache, null), i == 0, i == iterations - 1);
+        }
+    }
+
+    void read(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (buffer.getInt() != TraceRecorder.MAGIC) {
+                throw new IOException(file.getName() + " is not a DeRegion trace");
+            }
+            int version = buffer.getInt();
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            buffer.getLong();
+            while (buffer.hasRemaining()) {
+                readRecord(buffer);
+            }
+        } catch (BufferUnderflowException e) {
+            // Трасса могла оборваться при остановке сервера - берём всё, что успели прочитать
+            System.err.println("Trace ends with a truncated record, ignoring it");
+        }
+    }
+
+    private void readRecord(ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        int tick = buffer.getInt();
+        switch (type) {
+            case TraceRecorder.LEVEL: {
+                int id = buffer.getInt();
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                levelIds.put(id, LevelIds.of(new String(name, StandardCharsets.UTF_8)));
+                break;
+            }
+            case TraceRecorder.PLAYER:
+                players.put(buffer.getInt(), new UUID(buffer.getLong(), buffer.getLong()));
+                break;
+            case TraceRecorder.BREAK:
+            case TraceRecorder.PLACE:
+            case TraceRecorder.INTERACT: {
+                Event event = new Event(type, tick, level(buffer.getInt()));
+                event.x = new int[]{buffer.getInt()};
+                event.y = new int[]{buffer.getInt()};
+                event.z = new int[]{buffer.getInt()};
+                event.player = players.get(buffer.getInt());
+                int flags = buffer.get();
+                event.op = (flags & TraceRecorder.FLAG_OP) != 0;
+                event.recorded = (flags & TraceRecorder.FLAG_DENIED) != 0 ? 1 : 0;
+                events.add(event);
+                break;
+            }
+            case TraceRecorder.BLOCK_EXPLODE:
+            case TraceRecorder.ENTITY_EXPLODE: {
+                Event event = new Event(type, tick, level(buffer.getInt()));
+                int count = buffer.getInt();
+                event.x = new int[count];
+                event.y = new int[count];
+                event.z = new int[count];
+                event.x[0] = buffer.getInt();
+                event.y[0] = buffer.getInt();
+                event.z[0] = buffer.getInt();
+                for (int i = 1; i < count; i++) {
+                    event.x[i] = event.x[0] + buffer.getShort();
+                    event.y[i] = event.y[0] + buffer.getShort();
+                    event.z[i] = event.z[0] + buffer.getShort();
+                }
+                event.recorded = buffer.getInt();
+                events.add(event);
+                break;
+            }
+            default:
+                throw new IOException("Unknown trace record type " + type);
+        }
+    }
+
+    private int level(int recordedId) throws IOException {
+        Integer id = levelIds.get(recordedId);
+        if (id == null) {
+            throw new IOException("Trace refers to undefined level " + recordedId);
+        }
+        return id;
+    }
+
+    private void run(ProtectionEngine engine, boolean compare, boolean report) {
+        RegionMetrics.Histogram[] latency = new RegionMetrics.Histogram[TraceRecorder.ENTITY_EXPLODE + 1];
+        long[] counts = new long[latency.length];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new RegionMetrics.Histogram();
+        }
+        int diffs = 0;
+
+        long start = System.nanoTime();
+        for (Event event : events) {
+            long eventStart = System.nanoTime();
+            int decision = decide(engine, event);
+            latency[event.type].record(System.nanoTime() - eventStart);
+            counts[event.type]++;
+            if (compare && decision != event.recorded) {
+                if (diffs < MAX_DIFFS_SHOWN) {
+                    System.out.println("DIFF " + describe(event) + ": recorded " + format(event, event.recorded)
+                            + ", now " + format(event, decision));
+                }
+                diffs++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (compare) {
+            System.out.println(diffs == 0 ? "No decision differences" : diffs + " decision differences");
+        }
+        if (!report) {
+            return;
+        }
+        System.out.printf("Replayed %d events in %s, %.0f events/s%n", events.size(), RegionMetrics.formatNanos(elapsed),
+                events.size() * 1e9 / Math.max(1, elapsed));
+        for (int type = TraceRecorder.BREAK; type < latency.length; type++) {
+            if (counts[type] == 0) {
+                continue;
+            }
+            System.out.printf("  %-15s %8d events, p50 <%s, p90 <%s, p99 <%s, max %s%n", typeName(type), counts[type],
+                    RegionMetrics.formatNanos(latency[type].percentile(0.5)),
+                    RegionMetrics.formatNanos(latency[type].percentile(0.9)),
+                    RegionMetrics.formatNanos(latency[type].percentile(0.99)),
+                    RegionMetrics.formatNanos(latency[type].getMax()));
+        }
+    }
+
+    // Для блоков: 1 - запрещено, 0 - разрешено. Для взрывов: сколько блоков убрано из списка
+    private static int decide(ProtectionEngine engine, Event event) {
+        switch (event.type) {
+            case TraceRecorder.BREAK:
+            case TraceRecorder.PLACE:
+                if (event.op) {
+                    return 0;
+                }
+                return engine.canBuild(event.player, event.levelId, event.x[0], event.y[0], event.z[0]) ? 0 : 1;
+            case TraceRecorder.INTERACT:
+                if (event.op) {
+                    return 0;
+                }
+                return engine.allows(RegionFlags.INTERACT, PlayerIds.of(event.player),
+                        event.levelId, event.x[0], event.y[0], event.z[0]) ? 0 : 1;
+            case TraceRecorder.BLOCK_EXPLODE:
+            case TraceRecorder.ENTITY_EXPLODE:
+                return filterExplosion(engine, event);
+            default:
+                return event.recorded;
+        }
+    }
+
+    // То же, что Main.filterExplosion, только на массивах координат
+    private static int filterExplosion(ProtectionEngine engine, Event event) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = 0; i < event.x.length; i++) {
+            minX = Math.min(minX, event.x[i]);
+            minY = Math.min(minY, event.y[i]);
+            minZ = Math.min(minZ, event.z[i]);
+            maxX = Math.max(maxX, event.x[i]);
+            maxY = Math.max(maxY, event.y[i]);
+            maxZ = Math.max(maxZ, event.z[i]);
+        }
+        Region[] candidates = engine.getExplosionCandidates(event.levelId, minX, minY, minZ, maxX, maxY, maxZ);
+        if (candidates.length == 0) {
+            return 0;
+        }
+        int removed = 0;
+        for (int i = 0; i < event.x.length; i++) {
+            if (ProtectionEngine.isDenied(candidates, RegionFlags.EXPLOSIONS, event.levelId, event.x[i], event.y[i], event.z[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String describe(Event event) {
+        return "tick " + event.tick + " " + typeName(event.type) + " " + LevelIds.nameOf(event.levelId) + " "
+                + event.x[0] + "," + event.y[0] + "," + event.z[0]
+                + (event.player != null ? " player " + event.player : "");
+    }
+
+    private static String format(Event event, int decision) {
+        if (event.type == TraceRecorder.BLOCK_EXPLODE || event.type == TraceRecorder.ENTITY_EXPLODE) {
+            return decision + "/" + event.x.length + " blocks protected";
+        }
+        return decision != 0 ? "DENY" : "ALLOW";
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case TraceRecorder.BREAK:
+                return "break";
+            case TraceRecorder.PLACE:
+                return "place";
+            case TraceRecorder.INTERACT:
+                return "interact";
+            case TraceRecorder.BLOCK_EXPLODE:
+                return "block explode";
+            case TraceRecorder.ENTITY_EXPLODE:
+                return "entity explode";
+            default:
+                return "type " + type;
+        }
+    }
+
+    private static class Event {
+        private final byte type;
+        private final int tick;
+        private final int levelId;
+        private int[] x;
+        private int[] y;
+        private int[] z;
+        private UUID player;
+        private boolean op;
+        private int recorded;
+
+        Event(byte type, int tick, int levelId) {
+            this.type = type;
+            this.tick = tick;
+            this.levelId = levelId;
+        }
+    }
+}
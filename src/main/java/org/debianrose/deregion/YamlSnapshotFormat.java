@@ -0,0 +1,126 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+// regions.yml - медленнее бинарного, зато его можно править руками.
+// Регионы лежат в levels.<мир>.<регион>; старый плоский список regions.<регион> тоже читается.
+// Владелец и участники записаны UUID, имена игроков - в players.<uuid>
+public class YamlSnapshotFormat implements SnapshotFormat {
+
+    @Override
+    public String getName() {
+        return "yaml";
+    }
+
+    @Override
+    public String getFileName() {
+        return "regions.yml";
+    }
+
+    @Override
+    public byte[] write(StorageSnapshot snapshot) {
+        Map<String, Object> levelsData = new LinkedHashMap<>();
+        for (String levelName : snapshot.getLevelNames()) {
+            Map<String, Object> regionsData = new LinkedHashMap<>();
+            for (Region region : snapshot.getRegions(levelName)) {
+                Map<String, Object> regionData = region.toMap();
+                regionData.remove("level");
+                regionsData.put(region.getName(), regionData);
+            }
+            levelsData.put(levelName, regionsData);
+        }
+        Map<String, Object> playersData = new LinkedHashMap<>();
+        for (Map.Entry<UUID, String> player : snapshot.getPlayers().entrySet()) {
+            playersData.put(player.getKey().toString(), player.getValue());
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("players", playersData);
+        root.put("levels", levelsData);
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        options.setIndent(2);
+        return new Yaml(options).dump(root).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(File file, RegionStore store, Predicate<String> isLevelLoaded, BiConsumer<String, Exception> errors) throws IOException {
+        Object root;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            // Лимит SnakeYAML по умолчанию (3 МБ) слишком мал для больших серверов
+            LoaderOptions loaderOptions = new LoaderOptions();
+            loaderOptions.setCodePointLimit(Integer.MAX_VALUE);
+            root = new Yaml(loaderOptions).load(reader);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed " + file.getName(), e);
+        }
+        if (!(root instanceof Map)) {
+            return;
+        }
+
+        // Имена читаем раньше регионов, чтобы регионы получили уже известные id
+        Object playersData = ((Map<String, Object>) root).get("players");
+        if (playersData instanceof Map) {
+            for (Map.Entry<String, Object> player : ((Map<String, Object>) playersData).entrySet()) {
+                try {
+                    UUID uuid = UUID.fromString(String.valueOf(player.getKey()));
+                    PlayerIds.register(uuid, String.valueOf(player.getValue()));
+                    PlayerIds.retain(PlayerIds.of(uuid));
+                } catch (IllegalArgumentException e) {
+                    errors.accept("player " + player.getKey(), e);
+                }
+            }
+        }
+
+        Map<String, List<Region>> dormant = new HashMap<>();
+        Object levelsData = ((Map<String, Object>) root).get("levels");
+        if (levelsData instanceof Map) {
+            for (Map.Entry<String, Object> level : ((Map<String, Object>) levelsData).entrySet()) {
+                if (level.getValue() instanceof Map) {
+                    readRegions(String.valueOf(level.getKey()), (Map<String, Object>) level.getValue(), store, isLevelLoaded, dormant, errors);
+                }
+            }
+        }
+        Object regionsData = ((Map<String, Object>) root).get("regions");
+        if (regionsData instanceof Map) {
+            readRegions(null, (Map<String, Object>) regionsData, store, isLevelLoaded, dormant, errors);
+        }
+
+        for (Map.Entry<String, List<Region>> entry : dormant.entrySet()) {
+            store.putDormantRegions(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readRegions(String levelName, Map<String, Object> regionsData, RegionStore store,
+                                    Predicate<String> isLevelLoaded, Map<String, List<Region>> dormant,
+                                    BiConsumer<String, Exception> errors) {
+        for (Map.Entry<String, Object> entry : regionsData.entrySet()) {
+            try {
+                Map<String, Object> regionData = new HashMap<>((Map<String, Object>) entry.getValue());
+                if (levelName != null) {
+                    regionData.put("level", levelName);
+                }
+                regionData.putIfAbsent("name", String.valueOf(entry.getKey()));
+                Region region = Region.fromMap(regionData);
+                if (isLevelLoaded.test(region.getLevelName())) {
+                    store.put(region);
+                } else {
+                    dormant.computeIfAbsent(region.getLevelName(), k -> new ArrayList<>()).add(region);
+                }
+            } catch (Exception e) {
+                errors.accept(String.valueOf(entry.getKey()), e);
+            }
+        }
+    }
+}
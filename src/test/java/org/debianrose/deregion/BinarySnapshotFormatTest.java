@@ -0,0 +1,221 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinarySnapshotFormatTest {
+
+    private static final UUID OWNER = new UUID(21, 1);
+    private static final UUID MEMBER = new UUID(21, 2);
+
+    private final BinarySnapshotFormat format = new BinarySnapshotFormat();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void roundTripsCurrentVersion() throws IOException {
+        RegionStore store = new RegionStore();
+        List<Region> regions = sampleRegions();
+        store.putAll(regions);
+
+        RegionStore loaded = read(format.write(store.snapshot()), levelName -> true);
+
+        assertEquals(regions.size(), loaded.size());
+        for (Region region : regions) {
+            assertEquals(region.toMap(), loaded.get(region.getName()).toMap());
+        }
+        assertEquals(1, loaded.getIndex().getNestedCount());
+    }
+
+    @Test
+    public void keepsUnloadedLevelsAsSections() throws IOException {
+        RegionStore store = new RegionStore();
+        List<Region> regions = sampleRegions();
+        store.putAll(regions);
+
+        // Мир nether не загружен: его секция хранится как есть и переживает повторную запись
+        RegionStore partial = read(format.write(store.snapshot()), "world"::equals);
+        assertEquals(2, partial.size());
+        assertEquals(1, partial.dormantSize());
+        assertEquals("nether", partial.getLevelOf("farm"));
+
+        RegionStore reloaded = read(format.write(partial.snapshot()), "world"::equals);
+        assertEquals(1, reloaded.loadLevel("nether"));
+        assertEquals(regions.get(2).toMap(), reloaded.get("farm").toMap());
+    }
+
+    @Test
+    public void readsOlderVersions() throws IOException {
+        Region shop = sampleRegions().get(1);
+        for (int version = 1; version < BinarySnapshotFormat.VERSION; version++) {
+            RegionStore loaded = read(legacy(version, shop), levelName -> true);
+
+            Region region = loaded.get("shop");
+            assertNotNull(region, "version " + version);
+            assertEquals("world", region.getLevelName());
+            assertEquals(shop.getMaxY(), region.getMaxY());
+            assertEquals(PlayerIds.of(OWNER), region.getOwner());
+            assertArrayEquals(new int[]{PlayerIds.of(MEMBER)}, region.getMembers());
+            // Настройки появились в версии 4, приоритет и флаги - в версии 5
+            assertEquals(version >= 4 ? "Welcome" : null, region.getGreeting(), "version " + version);
+            assertEquals(0, region.getPriority());
+            assertEquals(0, region.getFlagsSet());
+        }
+    }
+
+    @Test
+    public void loadsOlderVersionsOfUnloadedLevels() throws IOException {
+        Region shop = sampleRegions().get(1);
+        RegionStore loaded = read(legacy(4, shop), levelName -> false);
+
+        assertEquals(0, loaded.size());
+        assertEquals(1, loaded.dormantSize());
+        assertEquals(1, loaded.loadLevel("world"));
+        assertEquals("Welcome", loaded.get("shop").getGreeting());
+    }
+
+    @Test
+    public void rejectsForeignAndUnknownFiles() throws IOException {
+        assertThrows(IOException.class, () -> read("not a snapshot".getBytes(StandardCharsets.UTF_8), levelName -> true));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BinarySnapshotFormat.MAGIC);
+        out.writeInt(BinarySnapshotFormat.VERSION + 1);
+        assertThrows(IOException.class, () -> read(bytes.toByteArray(), levelName -> true));
+    }
+
+    @Test
+    public void reportsCorruptionAsIOException() throws IOException {
+        RegionStore store = new RegionStore();
+        store.putAll(sampleRegions());
+        byte[] snapshot = format.write(store.snapshot());
+
+        // Обрезанный файл и испорченные байты не должны вылетать ничем, кроме IOException
+        for (int length = 8; length < snapshot.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(snapshot, length);
+            assertThrows(IOException.class, () -> read(truncated, levelName -> true), "length " + length);
+        }
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            byte[] corrupt = snapshot.clone();
+            corrupt[8 + random.nextInt(corrupt.length - 8)] = (byte) random.nextInt();
+            try {
+                read(corrupt, levelName -> true);
+            } catch (IOException expected) {
+                // Повреждение заметно, этого и ждём; а если байт попал в текст, файл читается
+            }
+        }
+    }
+
+    private static List<Region> sampleRegions() {
+        Region town = new Region("town", PlayerIds.of(OWNER), "world", 0, 0, 0, 199, 255, 199);
+        town.setOption("build", "allow");
+        town.setOption(Region.OPTION_FAREWELL, "Bye");
+
+        Region shop = new Region("shop", PlayerIds.of(OWNER), "world", 50, 60, 50, 59, 70, 59);
+        shop.addMember(PlayerIds.of(MEMBER));
+        shop.setOption(Region.OPTION_GREETING, "Welcome");
+        shop.setOption(Region.OPTION_DENY_ENTRY, "true");
+
+        Region farm = new Region("farm", PlayerIds.of(MEMBER), "nether", -20, 10, -20, -1, 40, -1);
+        farm.setOption(Region.OPTION_PRIORITY, "3");
+        farm.setOption("pvp", "deny");
+        farm.setOption("fire", "allow");
+        List<Region> regions = new ArrayList<>();
+        regions.add(town);
+        regions.add(shop);
+        regions.add(farm);
+        return regions;
+    }
+
+    private RegionStore read(byte[] bytes, java.util.function.Predicate<String> isLevelLoaded) throws IOException {
+        File file = dir.resolve("regions.dat").toFile();
+        Files.write(file.toPath(), bytes);
+        RegionStore store = new RegionStore();
+        format.read(file, store, isLevelLoaded, (name, error) -> fail(name + ": " + error));
+        return store;
+    }
+
+    // Снимок из одного региона в формате старой версии
+    private static byte[] legacy(int version, Region region) throws IOException {
+        String owner = PlayerIds.uuidOf(region.getOwner()).toString();
+        String member = PlayerIds.uuidOf(region.getMembers()[0]).toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BinarySnapshotFormat.MAGIC);
+        out.writeInt(version);
+        if (version == 1) {
+            writeStrings(out, region.getName(), owner, region.getLevelName(), member);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeInt(2);
+            writeBounds(out, region);
+            out.writeInt(1);
+            out.writeInt(3);
+            return bytes.toByteArray();
+        }
+        if (version >= 3) {
+            out.writeInt(1);
+            out.writeLong(OWNER.getMostSignificantBits());
+            out.writeLong(OWNER.getLeastSignificantBits());
+            writeString(out, "Owner");
+        }
+
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+        DataOutputStream section = new DataOutputStream(sectionBytes);
+        writeStrings(section, region.getName(), owner, member, region.getGreeting());
+        section.writeInt(1);
+        section.writeInt(0);
+        section.writeInt(1);
+        writeBounds(section, region);
+        section.writeInt(1);
+        section.writeInt(2);
+        if (version >= 4) {
+            section.writeInt(1);
+            section.writeInt(3);
+            section.writeInt(-1);
+        }
+        out.writeInt(1);
+        writeString(out, region.getLevelName());
+        out.writeInt(sectionBytes.size());
+        out.write(sectionBytes.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    private static void writeBounds(DataOutputStream out, Region region) throws IOException {
+        out.writeInt(region.getMinX());
+        out.writeInt(region.getMinY());
+        out.writeInt(region.getMinZ());
+        out.writeInt(region.getMaxX());
+        out.writeInt(region.getMaxY());
+        out.writeInt(region.getMaxZ());
+    }
+
+    private static void writeStrings(DataOutputStream out, String... values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+}
@@ -0,0 +1,104 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalReplayTest {
+
+    private static final UUID OWNER = new UUID(51, 1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void cleanJournalCanBeCompacted() throws IOException {
+        RegionJournal journal = journal(RegionJournal.create(region("shop")), RegionJournal.create(region("farm")));
+        RegionStore store = new RegionStore();
+        JournalReplay replay = new JournalReplay(journal, store);
+
+        assertTrue(replay.run((index, e) -> fail("entry " + index + ": " + e)));
+        assertEquals(2, replay.getApplied());
+        assertEquals(2, store.size());
+        assertFalse(replay.needsBackup());
+        assertTrue(replay.canCompact());
+    }
+
+    @Test
+    public void checksumMismatchInTheMiddleKeepsLaterRecords() throws IOException {
+        byte[] first = RegionJournal.create(region("shop"));
+        RegionJournal journal = journal(first, RegionJournal.create(region("farm")), RegionJournal.create(region("mine")));
+        flip(journal, first.length + 6);
+        RegionStore store = new RegionStore();
+        JournalReplay replay = new JournalReplay(journal, store);
+
+        List<Integer> skipped = new ArrayList<>();
+        assertTrue(replay.run((index, e) -> skipped.add(index)));
+        assertEquals(Arrays.asList(1), skipped);
+        assertNotNull(store.get("shop"));
+        assertNull(store.get("farm"));
+        assertNotNull(store.get("mine"));
+
+        // Сжимать можно только после того, как копия с пропущенной записью сохранена
+        assertFalse(replay.canCompact());
+        File backup = replay.saveBackup(dir.toFile());
+        assertArrayEquals(Files.readAllBytes(journal.getFile().toPath()), Files.readAllBytes(backup.toPath()));
+        assertTrue(replay.canCompact());
+    }
+
+    @Test
+    public void corruptLengthInTheMiddleIsNotCompactedAway() throws IOException {
+        byte[] first = RegionJournal.create(region("shop"));
+        RegionJournal journal = journal(first, RegionJournal.create(region("farm")), RegionJournal.create(region("mine")));
+        flip(journal, first.length);
+        byte[] original = Files.readAllBytes(journal.getFile().toPath());
+        RegionStore store = new RegionStore();
+        JournalReplay replay = new JournalReplay(journal, store);
+
+        assertFalse(replay.run((index, e) -> fail("entry " + index + ": " + e)));
+        assertNotNull(replay.getError());
+        assertNotNull(store.get("shop"));
+        assertNull(store.get("mine"));
+        assertTrue(replay.needsBackup());
+        File backup = replay.saveBackup(dir.toFile());
+
+        // Даже с копией журнал остаётся как есть: записи после испорченной ещё можно достать
+        assertFalse(replay.canCompact());
+        assertArrayEquals(original, Files.readAllBytes(journal.getFile().toPath()));
+        assertArrayEquals(original, Files.readAllBytes(backup.toPath()));
+    }
+
+    private static Region region(String name) {
+        return new Region(name, PlayerIds.of(OWNER), "world", 0, 0, 0, 9, 9, 9);
+    }
+
+    private RegionJournal journal(byte[]... records) throws IOException {
+        RegionJournal journal = new RegionJournal(dir.resolve("regions.journal").toFile());
+        for (byte[] record : records) {
+            journal.append(record);
+        }
+        journal.close();
+        return journal;
+    }
+
+    private static void flip(RegionJournal journal, long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(journal.getFile(), "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x55);
+        }
+    }
+}
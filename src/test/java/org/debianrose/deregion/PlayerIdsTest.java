@@ -0,0 +1,47 @@
+package org.debianrose.deregion;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlayerIdsTest {
+
+    @AfterEach
+    public void closeClaims() {
+        PlayerIds.setLegacyClaimsUntil(0);
+    }
+
+    @Test
+    public void newUuidDoesNotTakeLegacyNameByDefault() {
+        int legacyId = PlayerIds.parse("Squatted");
+        UUID newcomer = new UUID(61, 1);
+
+        assertTrue(PlayerIds.register(newcomer, "Squatted"));
+        assertNotEquals(legacyId, PlayerIds.of(newcomer));
+        assertEquals(PlayerIds.offlineUuid("Squatted"), PlayerIds.uuidOf(legacyId));
+    }
+
+    @Test
+    public void newUuidTakesLegacyNameWhileClaimsAreOpen() {
+        int legacyId = PlayerIds.parse("Migrated");
+        UUID player = new UUID(61, 2);
+        PlayerIds.setLegacyClaimsUntil(System.currentTimeMillis() + 60_000);
+
+        assertTrue(PlayerIds.register(player, "Migrated"));
+        assertEquals(legacyId, PlayerIds.of(player));
+        assertEquals(player, PlayerIds.uuidOf(legacyId));
+    }
+
+    @Test
+    public void expiredClaimWindowIsIgnored() {
+        int legacyId = PlayerIds.parse("Late");
+        UUID player = new UUID(61, 3);
+        PlayerIds.setLegacyClaimsUntil(System.currentTimeMillis() - 60_000);
+
+        PlayerIds.register(player, "Late");
+        assertNotEquals(legacyId, PlayerIds.of(player));
+    }
+}
@@ -0,0 +1,99 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlotGridTest {
+
+    @Test
+    public void createsPlotsSeparatedByRoads() {
+        PlotGrid grid = new PlotGrid("plot", "world", 100, -50, 0, 255, 3, 2, 10, 4, 0);
+        List<Region> plots = grid.createAll();
+
+        assertEquals(6, plots.size());
+        Region plot = plots.get(1 * 3 + 2);
+        assertEquals("plot_2_1", plot.getName());
+        assertEquals(128, plot.getMinX());
+        assertEquals(137, plot.getMaxX());
+        assertEquals(-36, plot.getMinZ());
+        assertEquals(-27, plot.getMaxZ());
+        assertEquals(grid.getMaxX(), plot.getMaxX());
+        assertEquals(grid.getMaxZ(), plot.getMaxZ());
+    }
+
+    @Test
+    public void boxOnRoadsOrOutsideHitsNothing() {
+        PlotGrid grid = new PlotGrid("plot", "world", 0, 0, 10, 90, 4, 4, 10, 4, 0);
+
+        assertNull(grid.plotsIn(10, 20, 0, 13, 30, 50));
+        assertNull(grid.plotsIn(0, 91, 0, 100, 120, 100));
+        assertNull(grid.plotsIn(-20, 20, -20, -1, 30, -1));
+        assertNull(grid.plotsIn(60, 20, 60, 80, 30, 80));
+        assertArrayEquals(new int[]{0, 0, 1, 0}, grid.plotsIn(9, 20, 5, 14, 30, 9));
+    }
+
+    @Test
+    public void coversWholeHeightOfExtendedWorlds() {
+        PlotGrid grid = new PlotGrid("plot", "world", 0, 0, -64, 319, 2, 2, 10, 4, 0);
+        Region plot = grid.createAll().get(0);
+
+        assertEquals(-64, plot.getMinY());
+        assertEquals(319, plot.getMaxY());
+        assertArrayEquals(new int[]{0, 0, 0, 0}, grid.plotsIn(2, -60, 2, 3, -50, 3));
+        assertArrayEquals(new int[]{1, 1, 1, 1}, grid.plotsIn(15, 300, 15, 16, 310, 16));
+        assertNull(grid.plotsIn(2, -80, 2, 3, -65, 3));
+    }
+
+    @Test
+    public void plotsInMatchesBruteForce() {
+        Random random = new Random(9);
+        for (int test = 0; test < 500; test++) {
+            int columns = 1 + random.nextInt(8);
+            int rows = 1 + random.nextInt(8);
+            int originX = random.nextInt(200) - 100;
+            int originZ = random.nextInt(200) - 100;
+            PlotGrid grid = new PlotGrid("p", "world", originX, originZ, 10, 90, columns, rows,
+                    1 + random.nextInt(20), random.nextInt(6), 0);
+            List<Region> plots = grid.createAll();
+            for (int box = 0; box < 20; box++) {
+                int minX = originX - 30 + random.nextInt(300);
+                int minZ = originZ - 30 + random.nextInt(300);
+                int minY = random.nextInt(120);
+                int maxX = minX + random.nextInt(40);
+                int maxY = minY + random.nextInt(40);
+                int maxZ = minZ + random.nextInt(40);
+
+                Set<Integer> expected = new HashSet<>();
+                for (int i = 0; i < plots.size(); i++) {
+                    if (plots.get(i).overlapsWith(minX, minY, minZ, maxX, maxY, maxZ)) {
+                        expected.add(i);
+                    }
+                }
+                Set<Integer> actual = new HashSet<>();
+                int[] hit = grid.plotsIn(minX, minY, minZ, maxX, maxY, maxZ);
+                if (hit != null) {
+                    for (int row = hit[1]; row <= hit[3]; row++) {
+                        for (int column = hit[0]; column <= hit[2]; column++) {
+                            actual.add(row * columns + column);
+                        }
+                    }
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidSizes() {
+        assertThrows(IllegalArgumentException.class, () -> new PlotGrid("p", "world", 0, 0, 0, 255, 0, 1, 10, 2, 0));
+        assertThrows(IllegalArgumentException.class, () -> new PlotGrid("p", "world", 0, 0, 0, 255, 1, 1, 10, -1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new PlotGrid("p", "world", 0, 0, 0, 255, 1000, 1000, 10, 2, 0));
+    }
+}
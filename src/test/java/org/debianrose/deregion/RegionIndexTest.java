@@ -0,0 +1,240 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionIndexTest {
+
+    private static final UUID TOWN_OWNER = new UUID(41, 1);
+    private static final UUID SHOP_OWNER = new UUID(41, 2);
+    private static final UUID STRANGER = new UUID(41, 3);
+
+    private final int level = LevelIds.of("world");
+
+    @Test
+    public void nestedRegionInheritsUnsetFlags() {
+        RegionStore store = townWithShop();
+        RegionIndex index = store.getIndex();
+        assertEquals(1, index.getNestedCount());
+        assertEquals(0, index.getTangledCount());
+
+        store.setOption(store.get("town"), "build", "allow");
+        store.setOption(store.get("town"), "pvp", "deny");
+        ProtectionEngine engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertTrue(engine.canBuild(STRANGER, level, 10, 64, 10));
+        // Магазин строительство не задавал и берёт его у города, а interact запретил сам
+        assertTrue(engine.canBuild(STRANGER, level, 55, 65, 55));
+        assertFalse(engine.allows(RegionFlags.PVP, level, 55, 65, 55));
+        assertFalse(engine.allows(RegionFlags.INTERACT, PlayerIds.of(STRANGER), level, 55, 65, 55));
+        assertTrue(engine.allows(RegionFlags.INTERACT, PlayerIds.of(SHOP_OWNER), level, 55, 65, 55));
+
+        store.setOption(store.get("shop"), "build", "deny");
+        engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertFalse(engine.canBuild(STRANGER, level, 55, 65, 55));
+        assertTrue(engine.canBuild(SHOP_OWNER, level, 55, 65, 55));
+        assertFalse(engine.canBuild(TOWN_OWNER, level, 55, 65, 55));
+        assertTrue(engine.canBuild(STRANGER, level, 10, 64, 10));
+    }
+
+    @Test
+    public void partialOverlapResolvesByPriorityThenDeny() {
+        RegionStore store = townWithShop();
+        store.setOption(store.get("town"), "build", "allow");
+        Region side = new Region("side", PlayerIds.of(STRANGER), "world", 190, 0, 190, 220, 255, 220);
+        store.put(side);
+        assertEquals(2, store.getIndex().getTangledCount());
+
+        ProtectionEngine engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertTrue(engine.canBuild(SHOP_OWNER, level, 195, 64, 195));
+
+        // Равный приоритет: запрет сильнее разрешения
+        store.setOption(store.get("side"), "build", "deny");
+        engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertFalse(engine.canBuild(SHOP_OWNER, level, 195, 64, 195));
+        assertTrue(engine.canBuild(STRANGER, level, 195, 64, 195));
+        assertTrue(engine.canBuild(SHOP_OWNER, level, 185, 64, 185));
+
+        // Более высокий приоритет побеждает запрет
+        store.setOption(store.get("town"), Region.OPTION_PRIORITY, "5");
+        engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertTrue(engine.canBuild(SHOP_OWNER, level, 195, 64, 195));
+
+        store.remove("side");
+        assertEquals(0, store.getIndex().getTangledCount());
+        assertEquals(1, store.getIndex().getNestedCount());
+    }
+
+    @Test
+    public void largeRegionsTakePartInChains() {
+        RegionStore store = townWithShop();
+        Region huge = new Region("huge", PlayerIds.of(TOWN_OWNER), "world", -5000, 0, -5000, 5000, 255, 5000);
+        huge.setOption(Region.OPTION_PRIORITY, "-1");
+        huge.setOption("build", "allow");
+        store.put(huge);
+        store.setOption(store.get("shop"), "build", "deny");
+        assertEquals(2, store.getIndex().getNestedCount());
+
+        ProtectionEngine engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertTrue(engine.canBuild(STRANGER, level, 3000, 64, 3000));
+        assertTrue(engine.canBuild(STRANGER, level, 10, 64, 10));
+        assertFalse(engine.canBuild(STRANGER, level, 55, 65, 55));
+        assertTrue(engine.canBuild(STRANGER, level, 6000, 64, 6000));
+    }
+
+    @Test
+    public void chunkLookupMatchesLinearScan() {
+        Random random = new Random(5);
+        RegionStore store = new RegionStore();
+        List<Region> added = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(4000) - 2000;
+            int z = random.nextInt(4000) - 2000;
+            // Часть регионов больше 1024 чанков: они лежат в отдельном списке, а не в таблице
+            int size = random.nextInt(30) == 0 ? 700 + random.nextInt(600) : 1 + random.nextInt(40);
+            added.add(new Region("r" + i, PlayerIds.of(STRANGER), "world", x, 0, z, x + size, 255, z + size));
+        }
+        store.putAll(added);
+        for (int i = 0; i < 300; i += 3) {
+            store.remove("r" + i);
+        }
+
+        RegionIndex index = store.getIndex();
+        Region[] regions = store.getRegions().toArray(new Region[0]);
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(5000) - 2500;
+            int y = random.nextInt(256);
+            int z = random.nextInt(5000) - 2500;
+            int size = random.nextInt(64);
+            boolean contains = false;
+            boolean overlaps = false;
+            for (Region region : regions) {
+                contains |= region.contains(level, x, y, z);
+                overlaps |= region.overlapsWith(x, y, z, x + size, y, z + size);
+            }
+            String at = x + "," + y + "," + z;
+            assertEquals(contains, index.isProtected(level, x, y, z), at);
+            assertEquals(contains, !index.getRegionsAt("world", x, y, z).isEmpty(), at);
+            assertEquals(overlaps, index.overlapsAny(level, x, y, z, x + size, y, z + size), at);
+        }
+    }
+
+    @Test
+    public void regionsMatchOnlyInTheirOwnLevel() {
+        RegionStore store = townWithShop();
+        Region farm = new Region("farm", PlayerIds.of(STRANGER), "nether", 50, 60, 50, 59, 70, 59);
+        Region huge = new Region("huge", PlayerIds.of(STRANGER), "nether", -5000, 0, -5000, 5000, 255, 5000);
+        store.put(farm);
+        store.put(huge);
+        RegionIndex index = store.getIndex();
+        int nether = LevelIds.of("nether");
+        int end = LevelIds.of("the_end");
+
+        assertEquals(Arrays.asList("shop", "town"), names(index.getRegionsAt("world", 55, 65, 55)));
+        assertEquals(Arrays.asList("farm", "huge"), names(index.getRegionsAt("nether", 55, 65, 55)));
+        assertTrue(index.getRegionsAt("the_end", 55, 65, 55).isEmpty());
+        assertFalse(index.isProtected(level, 3000, 64, 3000));
+        assertTrue(index.isProtected(nether, 3000, 64, 3000));
+        assertFalse(index.isProtected(end, 55, 65, 55));
+        assertFalse(index.mayHaveRegions(end, 3, 3));
+        assertFalse(index.overlapsAny(end, 0, 0, 0, 199, 255, 199));
+
+        // Магазин и ферма в одних координатах, но в разных мирах: каждый вложен только в регион своего мира
+        assertEquals(2, index.getNestedCount());
+        assertEquals(0, index.getTangledCount());
+        ProtectionEngine engine = new ProtectionEngine(store, new PermissionCache(64), null);
+        assertTrue(engine.canBuild(STRANGER, nether, 55, 65, 55));
+        assertFalse(engine.canBuild(STRANGER, level, 55, 65, 55));
+    }
+
+    @Test
+    public void cellsMatchBruteForce() {
+        Random random = new Random(17);
+        UUID[] players = {TOWN_OWNER, SHOP_OWNER, STRANGER};
+        String[] flags = {"build", "pvp", "interact", "explosions", "fire", "flow"};
+        RegionStore store = new RegionStore();
+        for (int round = 0; round < 4; round++) {
+            List<Region> added = new ArrayList<>();
+            for (int i = 0; i < 80; i++) {
+                int x = random.nextInt(800) - 400;
+                int z = random.nextInt(800) - 400;
+                int y = random.nextInt(200);
+                // Каждый двадцатый регион большой: он хранится вне таблицы чанков
+                int size = random.nextInt(20) == 0 ? 600 : 1 + random.nextInt(50);
+                Region region = new Region("r" + round + "_" + i, PlayerIds.of(players[random.nextInt(players.length)]), "world",
+                        x, y, z, x + size, y + random.nextInt(80), z + size);
+                region.setOption(Region.OPTION_PRIORITY, String.valueOf(random.nextInt(3)));
+                for (String flag : flags) {
+                    if (random.nextInt(3) == 0) {
+                        region.setOption(flag, random.nextBoolean() ? "allow" : "deny");
+                    }
+                }
+                added.add(region);
+            }
+            store.putAll(added);
+            if (round > 0) {
+                for (int i = 0; i < 30; i++) {
+                    store.remove("r" + (round - 1) + "_" + i);
+                }
+            }
+
+            RegionIndex index = store.getIndex();
+            Region[] regions = store.getRegions().toArray(new Region[0]);
+            ProtectionEngine engine = new ProtectionEngine(store, new PermissionCache(1024), null);
+            for (int i = 0; i < 20000; i++) {
+                int x = random.nextInt(1200) - 600;
+                int y = random.nextInt(300);
+                int z = random.nextInt(1200) - 600;
+                Region[] containing = new Region[regions.length];
+                int count = 0;
+                for (Region region : regions) {
+                    if (region.contains(level, x, y, z)) {
+                        containing[count++] = region;
+                    }
+                }
+                RegionFlags.Cell expected = RegionFlags.resolve(containing, count);
+                RegionFlags.Cell cell = index.getCell(level, x, y, z);
+                String at = "round " + round + " at " + x + "," + y + "," + z;
+                assertEquals(expected.getAllowed(), cell.getAllowed(), at);
+                assertEquals(expected.getRegionCount(), cell.getRegionCount(), at);
+                assertEquals(count >= 2, index.getOverlapCell(level, x, y, z) != null, at);
+                if (count >= 2) {
+                    assertTrue(index.mayHaveOverlaps(level, x >> 4, z >> 4), at);
+                }
+                for (UUID player : players) {
+                    assertEquals(expected.isMember(PlayerIds.of(player)), cell.isMember(PlayerIds.of(player)), at);
+                    assertEquals(expected.allows(RegionFlags.BUILD, PlayerIds.of(player)),
+                            engine.canBuild(player, level, x, y, z), at);
+                }
+            }
+        }
+    }
+
+    private static List<String> names(List<Region> regions) {
+        List<String> names = new ArrayList<>();
+        for (Region region : regions) {
+            names.add(region.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static RegionStore townWithShop() {
+        Region town = new Region("town", PlayerIds.of(TOWN_OWNER), "world", 0, 0, 0, 199, 255, 199);
+        Region shop = new Region("shop", PlayerIds.of(SHOP_OWNER), "world", 50, 60, 50, 59, 70, 59);
+        shop.setOption(Region.OPTION_PRIORITY, "1");
+        shop.setOption("interact", "deny");
+        RegionStore store = new RegionStore();
+        store.put(town);
+        store.put(shop);
+        return store;
+    }
+}
@@ -0,0 +1,238 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionJournalTest {
+
+    private static final UUID OWNER = new UUID(11, 1);
+    private static final UUID MEMBER = new UUID(11, 2);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replaysAllOperations() throws IOException {
+        Region shop = shop();
+        RegionJournal journal = journal(
+                RegionJournal.create(shop),
+                RegionJournal.addMember(shop, PlayerIds.of(MEMBER)),
+                RegionJournal.setOption(shop, "pvp", "deny"),
+                RegionJournal.removeMember(shop, PlayerIds.of(MEMBER)),
+                RegionJournal.delete(shop));
+
+        Recorder recorder = new Recorder();
+        assertEquals(5, journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop", "add shop " + PlayerIds.of(MEMBER), "set shop pvp=deny",
+                "remove shop " + PlayerIds.of(MEMBER), "delete shop"), recorder.events);
+        assertTrue(recorder.skipped.isEmpty());
+
+        Region created = recorder.created.get(0);
+        assertEquals(shop.toMap(), created.toMap());
+        assertEquals(1, created.getPriority());
+        assertFalse(created.allows(RegionFlags.BUILD));
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        Region shop = shop();
+        RegionJournal journal = journal(RegionJournal.create(shop), RegionJournal.setOption(shop, "pvp", "deny"));
+        // Сбой посреди записи: от последней записи остались только первые байты
+        try (RandomAccessFile file = new RandomAccessFile(journal.getFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop"), recorder.events);
+        assertTrue(recorder.skipped.isEmpty());
+    }
+
+    @Test
+    public void skipsRecordWithChecksumMismatch() throws IOException {
+        Region shop = shop();
+        byte[] first = RegionJournal.create(shop);
+        RegionJournal journal = journal(first, RegionJournal.setOption(shop, "pvp", "deny"), RegionJournal.delete(shop));
+        // Портим байт данных второй записи: её crc32 больше не сходится
+        flip(journal, first.length + 6);
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop", "delete shop"), recorder.events);
+        assertEquals(Arrays.asList(1), recorder.skipped);
+        assertEquals(new HashSet<>(Arrays.asList("world")), journal.readLevels());
+    }
+
+    @Test
+    public void failsOnCorruptLengthFollowedByRecords() throws IOException {
+        Region shop = shop();
+        byte[] first = RegionJournal.create(shop);
+        RegionJournal journal = journal(first, RegionJournal.setOption(shop, "pvp", "deny"), RegionJournal.delete(shop));
+        // Длина второй записи больше допустимой: где начинается третья, уже не узнать
+        flip(journal, first.length);
+
+        Recorder recorder = new Recorder();
+        assertThrows(IOException.class, () -> journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop"), recorder.events);
+        assertThrows(IOException.class, journal::readLevels);
+    }
+
+    @Test
+    public void dropsZeroFilledTail() throws IOException {
+        Region shop = shop();
+        RegionJournal journal = journal(RegionJournal.create(shop), new byte[16]);
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop"), recorder.events);
+        assertTrue(recorder.skipped.isEmpty());
+    }
+
+    @Test
+    public void skipsUnknownOperation() throws IOException {
+        Region shop = shop();
+        RegionJournal journal = journal(
+                RegionJournal.create(shop),
+                record((byte) 99, "world", new byte[]{1, 2, 3}),
+                RegionJournal.setOption(shop, "pvp", "deny"));
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, journal.replay(recorder));
+        assertEquals(Arrays.asList("create shop", "set shop pvp=deny"), recorder.events);
+        assertEquals(Arrays.asList(1), recorder.skipped);
+    }
+
+    @Test
+    public void skipsRecordWithInvalidOption() throws IOException {
+        Region shop = shop();
+        RegionJournal journal = journal(
+                RegionJournal.setOption(shop, "priority", "high"),
+                RegionJournal.delete(shop));
+
+        Recorder recorder = new Recorder() {
+            @Override
+            public void setOption(String regionName, String key, String value) {
+                shop.copy().setOption(key, value);
+            }
+        };
+        assertEquals(1, journal.replay(recorder));
+        assertEquals(Arrays.asList("delete shop"), recorder.events);
+        assertEquals(Arrays.asList(0), recorder.skipped);
+    }
+
+    @Test
+    public void collectsLevels() throws IOException {
+        Region shop = shop();
+        Region farm = new Region("farm", PlayerIds.of(OWNER), "nether", 0, 0, 0, 9, 9, 9);
+        RegionJournal journal = journal(RegionJournal.create(shop), RegionJournal.create(farm), RegionJournal.player(PlayerIds.of(OWNER)));
+
+        assertEquals(new HashSet<>(Arrays.asList("world", "nether")), journal.readLevels());
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        RegionJournal journal = new RegionJournal(dir.resolve("absent.journal").toFile());
+
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.replay(new Recorder()));
+    }
+
+    private static Region shop() {
+        Region shop = new Region("shop", PlayerIds.of(OWNER), "world", 50, 60, 50, 59, 70, 59);
+        shop.setOption(Region.OPTION_PRIORITY, "1");
+        shop.setOption("build", "deny");
+        shop.setOption(Region.OPTION_GREETING, "Welcome");
+        return shop;
+    }
+
+    private RegionJournal journal(byte[]... records) throws IOException {
+        File file = dir.resolve("regions.journal").toFile();
+        RegionJournal journal = new RegionJournal(file);
+        for (byte[] record : records) {
+            journal.append(record);
+        }
+        journal.close();
+        return journal;
+    }
+
+    private static void flip(RegionJournal journal, long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(journal.getFile(), "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x55);
+        }
+    }
+
+    // Запись в формате журнала с произвольной операцией
+    private static byte[] record(byte op, String levelName, byte[] data) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(op);
+        out.writeUTF(levelName);
+        out.write(data);
+        byte[] body = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return ByteBuffer.allocate(body.length + 8).putInt(body.length).put(body).putInt((int) crc.getValue()).array();
+    }
+
+    private static class Recorder implements RegionJournal.Handler {
+        final List<String> events = new ArrayList<>();
+        final List<Region> created = new ArrayList<>();
+        final List<Integer> skipped = new ArrayList<>();
+
+        @Override
+        public void create(Region region) {
+            events.add("create " + region.getName());
+            created.add(region);
+        }
+
+        @Override
+        public void delete(String regionName) {
+            events.add("delete " + regionName);
+        }
+
+        @Override
+        public void addMember(String regionName, int memberId) {
+            events.add("add " + regionName + " " + memberId);
+        }
+
+        @Override
+        public void removeMember(String regionName, int memberId) {
+            events.add("remove " + regionName + " " + memberId);
+        }
+
+        @Override
+        public void player(UUID uuid, String name) {
+            events.add("player " + uuid);
+        }
+
+        @Override
+        public void setOption(String regionName, String key, String value) {
+            events.add("set " + regionName + " " + key + "=" + value);
+        }
+
+        @Override
+        public void skipped(int index, Exception error) {
+            skipped.add(index);
+        }
+    }
+}
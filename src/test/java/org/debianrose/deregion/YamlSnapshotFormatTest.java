@@ -0,0 +1,112 @@
+package org.debianrose.deregion;
+
+import org.debianrose.deregion.Main.Region;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class YamlSnapshotFormatTest {
+
+    private static final UUID OWNER = new UUID(31, 1);
+    private static final UUID MEMBER = new UUID(31, 2);
+
+    private final YamlSnapshotFormat format = new YamlSnapshotFormat();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void roundTripsRegionsAndPlayers() throws IOException {
+        PlayerIds.register(OWNER, "Owner");
+        PlayerIds.retain(PlayerIds.of(OWNER));
+        Region shop = new Region("shop", PlayerIds.of(OWNER), "world", 50, 60, 50, 59, 70, 59);
+        shop.addMember(PlayerIds.of(MEMBER));
+        shop.setOption(Region.OPTION_GREETING, "Welcome");
+        shop.setOption(Region.OPTION_PRIORITY, "2");
+        shop.setOption("build", "deny");
+        shop.setOption("flow", "allow");
+        Region farm = new Region("farm", PlayerIds.of(MEMBER), "nether", -20, 10, -20, -1, 40, -1);
+        RegionStore store = new RegionStore();
+        store.put(shop);
+        store.put(farm);
+
+        List<String> errors = new ArrayList<>();
+        RegionStore loaded = read(format.write(store.snapshot()), "world"::equals, errors);
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(shop.toMap(), loaded.get("shop").toMap());
+        assertEquals(1, loaded.dormantSize());
+        assertEquals(1, loaded.loadLevel("nether"));
+        assertEquals(farm.toMap(), loaded.get("farm").toMap());
+        assertEquals("Owner", PlayerIds.nameOf(PlayerIds.of(OWNER)));
+    }
+
+    @Test
+    public void readsFlatListOfOldVersions() throws IOException {
+        String yaml = "regions:\n"
+                + "  home:\n"
+                + "    owner: " + OWNER + "\n"
+                + "    level: world\n"
+                + "    pos1: 0,0,0\n"
+                + "    pos2: 9,9,9\n"
+                + "    members: []\n";
+
+        List<String> errors = new ArrayList<>();
+        RegionStore loaded = read(yaml.getBytes(StandardCharsets.UTF_8), levelName -> true, errors);
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        Region home = loaded.get("home");
+        assertEquals("world", home.getLevelName());
+        assertEquals(9, home.getMaxZ());
+        assertEquals(PlayerIds.of(OWNER), home.getOwner());
+    }
+
+    @Test
+    public void skipsBrokenRegionAndKeepsOthers() throws IOException {
+        String yaml = "levels:\n"
+                + "  world:\n"
+                + "    good:\n"
+                + "      owner: " + OWNER + "\n"
+                + "      pos1: 0,0,0\n"
+                + "      pos2: 9,9,9\n"
+                + "    bad:\n"
+                + "      owner: " + OWNER + "\n"
+                + "      pos1: 0,0,0\n"
+                + "      pos2: 9,9,9\n"
+                + "      priority: high\n";
+
+        List<String> errors = new ArrayList<>();
+        RegionStore loaded = read(yaml.getBytes(StandardCharsets.UTF_8), levelName -> true, errors);
+
+        assertNotNull(loaded.get("good"));
+        assertNull(loaded.get("bad"));
+        assertEquals(1, errors.size());
+        assertEquals("bad", errors.get(0));
+    }
+
+    @Test
+    public void reportsMalformedFile() {
+        byte[] yaml = "levels: [unclosed".getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(IOException.class, () -> read(yaml, levelName -> true, new ArrayList<>()));
+    }
+
+    private RegionStore read(byte[] bytes, Predicate<String> isLevelLoaded, List<String> errors) throws IOException {
+        File file = dir.resolve("regions.yml").toFile();
+        Files.write(file.toPath(), bytes);
+        RegionStore store = new RegionStore();
+        format.read(file, store, isLevelLoaded, (name, error) -> errors.add(name));
+        return store;
+    }
+}